@@ -1,7 +1,6 @@
 package com.cloudmine.api;
 
 import android.content.Context;
-import android.content.Intent;
 import android.content.SharedPreferences;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
@@ -12,7 +11,6 @@ import com.android.volley.Response;
 import com.android.volley.VolleyError;
 import com.cloudmine.api.db.RequestDBObject;
 import com.cloudmine.api.db.RequestDBOpenHelper;
-import com.cloudmine.api.db.RequestPerformerService;
 import com.cloudmine.api.exceptions.CreationException;
 import com.cloudmine.api.rest.BaseFileCreationRequest;
 import com.cloudmine.api.rest.BaseFileDeleteRequest;
@@ -163,6 +161,24 @@ public class BaseCacheableCMFile extends CMFile implements LocallySavable{
         return localFiles;
     }
 
+    /**
+     * Get the File the given fileId is stored in locally, without reading it
+     * @param context
+     * @param fileId
+     * @return the File, or null if there is no readable local copy
+     */
+    public static File getLocalFile(Context context, String fileId) {
+        return getLocalFile(context, fileId, shouldUseExternalStorage(context));
+    }
+
+    public static File getLocalFile(Context context, String fileId, boolean fromExternalStorage) {
+        if(context == null || fileId == null) return null;
+        File file = fromExternalStorage ?
+                new File(Environment.getExternalStorageDirectory(), fileId) :
+                context.getFileStreamPath(fileId);
+        return file.canRead() ? file : null;
+    }
+
     public static BaseCacheableCMFile loadLocalFile(Context context, String fileId, boolean fromExternalStorage) {
         if(fromExternalStorage) return loadLocalFileFromExternalStorage(fileId);
         else                    return loadLocalFileFromInternalStorage(context, fileId);
@@ -336,9 +352,6 @@ public class BaseCacheableCMFile extends CMFile implements LocallySavable{
                 wasCreated = false;
             }
         }
-        if(wasCreated) {
-            context.startService(new Intent(context, RequestPerformerService.class));
-        }
         return false;
     }
 
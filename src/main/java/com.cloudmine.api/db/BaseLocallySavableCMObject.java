@@ -2,8 +2,8 @@ package com.cloudmine.api.db;
 
 import android.content.ContentValues;
 import android.content.Context;
-import android.content.Intent;
 import android.os.Handler;
+import android.os.Looper;
 import com.android.volley.RequestQueue;
 import com.android.volley.Response;
 import com.android.volley.VolleyError;
@@ -12,15 +12,20 @@ import com.cloudmine.api.CMObject;
 import com.cloudmine.api.CMSessionToken;
 import com.cloudmine.api.JavaCMUser;
 import com.cloudmine.api.LocallySavable;
+import com.cloudmine.api.persistance.ClassNameRegistry;
 import com.cloudmine.api.rest.BaseObjectDeleteRequest;
 import com.cloudmine.api.rest.BaseObjectLoadRequest;
 import com.cloudmine.api.rest.BaseObjectModificationRequest;
+import com.cloudmine.api.rest.BaseStreamingObjectLoadRequest;
 import com.cloudmine.api.rest.CloudMineRequest;
+import com.cloudmine.api.rest.ObjectLoadBatcher;
 import com.cloudmine.api.rest.ObjectLoadRequestBuilder;
+import com.cloudmine.api.rest.ObjectSaveBatcher;
 import com.cloudmine.api.rest.SharedRequestQueueHolders;
 import com.cloudmine.api.rest.options.CMServerFunction;
 import com.cloudmine.api.rest.response.CMObjectResponse;
 import com.cloudmine.api.rest.response.ObjectModificationResponse;
+import com.cloudmine.api.rest.response.StreamedCMObjectResponse;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import me.cloudmine.annotations.Expand;
 import me.cloudmine.annotations.Optional;
@@ -32,6 +37,8 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static com.cloudmine.api.rest.SharedRequestQueueHolders.getRequestQueue;
 
@@ -77,6 +84,18 @@ public class BaseLocallySavableCMObject extends CMObject implements LocallySavab
         return loadObjects(context, Collections.singleton(objectId), token, apiCredentials, serverFunction, listener, errorListener);
     }
 
+    /**
+     * Load the object with the given id along with any other objects loaded this way at about the same time. All of
+     * the loads made within {@link ObjectLoadBatcher#getBatchWindowMs()} that share credentials, session and server
+     * function are sent as a single request, and the listener is given just the requested object, or null if
+     * it was not found. Like other requests started from the context, the load is cancelled by
+     * {@link com.cloudmine.api.rest.SharedRequestQueueHolders#cancelRequests(Context)}
+     */
+    @Expand(isStatic = true)
+    public static void loadObjectBatched(Context context, String objectId, @Optional CMSessionToken token, @Optional CMApiCredentials apiCredentials, @Optional CMServerFunction serverFunction, Response.Listener<CMObject> listener, @Optional Response.ErrorListener errorListener) {
+        ObjectLoadBatcher.getObjectLoadBatcher(context).load(context, objectId, token, apiCredentials, serverFunction, listener, errorListener);
+    }
+
     @Expand(isStatic = true)
     public static CloudMineRequest loadObjects(Context context, Collection <String> objectIds, @Optional CMSessionToken token, @Optional CMApiCredentials apiCredentials, @Optional CMServerFunction serverFunction, Response.Listener<CMObjectResponse> listener, @Optional Response.ErrorListener errorListener) {
         RequestQueue queue = getRequestQueue(context);
@@ -94,6 +113,20 @@ public class BaseLocallySavableCMObject extends CMObject implements LocallySavab
         return request;
     }
 
+    /**
+     * Load the objects with the given ids, parsing the response as it is read from the network instead of buffering it.
+     * Preferable to {@link #loadObjects(Context, Collection, CMSessionToken, CMApiCredentials, CMServerFunction, Response.Listener, Response.ErrorListener)}
+     * when a large number of objects will be returned. The response is not cached
+     * @param objectIds the ids of the objects to load. If null, all objects are loaded
+     */
+    @Expand(isStatic = true)
+    public static CloudMineRequest streamObjects(Context context, Collection <String> objectIds, @Optional CMSessionToken token, @Optional CMApiCredentials apiCredentials, @Optional CMServerFunction serverFunction, Response.Listener<StreamedCMObjectResponse> listener, @Optional Response.ErrorListener errorListener) {
+        RequestQueue queue = getRequestQueue(context);
+        BaseStreamingObjectLoadRequest request = new BaseStreamingObjectLoadRequest(objectIds, token, apiCredentials, serverFunction, listener, errorListener);
+        queue.add(request);
+        return request;
+    }
+
     @Expand(isStatic = true)
     public static CloudMineRequest searchObjects(Context context, String searchString, @Optional CMSessionToken token, @Optional CMApiCredentials apiCredentials, @Optional CMServerFunction serverFunction, @Optional Response.Listener<CMObjectResponse> listener, @Optional Response.ErrorListener errorListener) {
         RequestQueue queue = getRequestQueue(context);
@@ -121,6 +154,17 @@ public class BaseLocallySavableCMObject extends CMObject implements LocallySavab
         return CMObjectDBOpenHelper.getCMObjectDBHelper(context).loadObjectById(objectId);
     }
 
+    /**
+     * Load the locally stored copies of the objects with the given ids. Any number of ids may be given
+     * @param context activity context
+     * @param objectIds
+     * @param <OBJECT_TYPE> the type of the objects to load. May be a superclass of the actual types
+     * @return the objects that were found, in no particular order
+     */
+    public static <OBJECT_TYPE extends BaseLocallySavableCMObject> List<OBJECT_TYPE> loadLocalObjects(Context context, Collection<String> objectIds) {
+        return CMObjectDBOpenHelper.getCMObjectDBHelper(context).loadObjectsById(objectIds);
+    }
+
     /**
      * Delete the specified object, if it exists
      * @param context activity context
@@ -142,10 +186,191 @@ public class BaseLocallySavableCMObject extends CMObject implements LocallySavab
         return CMObjectDBOpenHelper.getCMObjectDBHelper(context).loadObjectsByClass(klass);
     }
 
+    /**
+     * Search the locally stored objects, using the same search syntax as {@link #searchObjects}, so one search string
+     * works both offline and online. Runs on the calling thread. Geo and subobject searches are not supported locally
+     * @param context activity context
+     * @param searchString such as [__class__="car", wheels > 3]
+     * @param <OBJECT_TYPE>
+     * @return the matching objects
+     * @throws IllegalArgumentException if the search string is malformed or can't be run locally
+     */
+    public static <OBJECT_TYPE extends BaseLocallySavableCMObject> List<OBJECT_TYPE> searchLocalObjects(Context context, String searchString) {
+        return CMObjectDBOpenHelper.getCMObjectDBHelper(context).searchObjects(searchString);
+    }
+
+    /**
+     * Add the string fields of locally stored objects of the given class to the full text index used by
+     * {@link #searchLocalText(Context, String, int)}. Should be called at startup for each class to search, before its
+     * objects are saved, since only saves made after this call are indexed. The first time it is called for a class,
+     * objects of the class that are already stored are indexed on a background thread
+     * @param context activity context
+     * @param klass
+     */
+    public static void enableLocalTextSearch(Context context, Class<? extends BaseLocallySavableCMObject> klass) {
+        final String className = ClassNameRegistry.forClass(klass);
+        CMObjectDBOpenHelper.enableTextSearch(className);
+        final CMObjectDBOpenHelper cmObjectDBHelper = CMObjectDBOpenHelper.getCMObjectDBHelper(context);
+        getLocalStorageExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    cmObjectDBHelper.indexClassForTextSearch(className);
+                } catch (RuntimeException e) {
+                    LOG.error("Failed indexing " + className + " for text search", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Full text search over the string fields of locally stored objects, for classes passed to
+     * {@link #enableLocalTextSearch(Context, Class)}. Runs on the calling thread
+     * @param context activity context
+     * @param query an FTS3 query, such as: coffee shop, "exact phrase" or caf*
+     * @param limit the most results to return; if less than 1, all of them are returned
+     * @return the ids of the matching objects, best match first. Load them with {@link #loadLocalObjects(Context, Collection)}
+     */
+    public static List<String> searchLocalText(Context context, String query, int limit) {
+        return CMObjectDBOpenHelper.getCMObjectDBHelper(context).searchText(query, limit);
+    }
+
+    /**
+     * Load the locally stored objects that are, or have a field that is, a geopoint within the given distance of a
+     * point. Runs on the calling thread
+     * @param context activity context
+     * @param latitude
+     * @param longitude
+     * @param radiusKm
+     * @param limit the most objects to return; if less than 1, all of them are returned
+     * @param <OBJECT_TYPE>
+     * @return the matching objects, nearest first
+     */
+    public static <OBJECT_TYPE extends BaseLocallySavableCMObject> List<OBJECT_TYPE> loadLocalObjectsNear(Context context, double latitude, double longitude, double radiusKm, int limit) {
+        return CMObjectDBOpenHelper.getCMObjectDBHelper(context).loadObjectsNear(latitude, longitude, radiusKm, limit);
+    }
+
+    /**
+     * Load the locally stored objects that are, or have a field that is, a geopoint inside the given box, such as the
+     * visible region of a map. Runs on the calling thread
+     * @param context activity context
+     * @param south
+     * @param west
+     * @param north
+     * @param east if less than west, the box crosses the antimeridian
+     * @param limit the most objects to return; if less than 1, all of them are returned
+     * @param <OBJECT_TYPE>
+     * @return the matching objects, nearest the center of the box first
+     */
+    public static <OBJECT_TYPE extends BaseLocallySavableCMObject> List<OBJECT_TYPE> loadLocalObjectsWithin(Context context, double south, double west, double north, double east, int limit) {
+        return CMObjectDBOpenHelper.getCMObjectDBHelper(context).loadObjectsWithin(south, west, north, east, limit);
+    }
+
     public static List<BaseLocallySavableCMObject> loadLocalObjects(Context context) {
         return CMObjectDBOpenHelper.getCMObjectDBHelper(context).loadAllObjects();
     }
 
+    /**
+     * Load all of the objects of the specified class that are stored locally, deserializing each one only when it
+     * is accessed. Close the returned list once it is no longer needed
+     * @param context activity context
+     * @param klass
+     * @param <OBJECT_TYPE>
+     * @return
+     */
+    public static <OBJECT_TYPE extends BaseLocallySavableCMObject> LocalObjectCursorList<OBJECT_TYPE> loadLocalObjectsByClassLazily(Context context, Class<OBJECT_TYPE> klass) {
+        return CMObjectDBOpenHelper.getCMObjectDBHelper(context).loadObjectsByClassLazily(klass);
+    }
+
+    /**
+     * Load all of the objects that are stored locally, deserializing each one only when it is accessed. Close the
+     * returned list once it is no longer needed
+     * @param context activity context
+     * @return
+     */
+    public static LocalObjectCursorList<BaseLocallySavableCMObject> loadLocalObjectsLazily(Context context) {
+        return CMObjectDBOpenHelper.getCMObjectDBHelper(context).loadAllObjectsLazily();
+    }
+
+    /**
+     * Save all of the given objects to local storage in a single transaction; much faster than calling
+     * {@link #saveLocally(Context)} on each object. Runs on the calling thread
+     * @param context
+     * @param objects
+     * @return true if every object was saved, false if none were
+     */
+    public static boolean saveLocally(Context context, Collection<? extends BaseLocallySavableCMObject> objects) {
+        boolean wasSaved = CMObjectDBOpenHelper.getCMObjectDBHelper(context).insertCMObjects(objects);
+        if(wasSaved) {
+            Date savedDate = new Date();
+            for(BaseLocallySavableCMObject object : objects) {
+                if(object != null) object.lastLocalSaveDate = savedDate;
+            }
+        }
+        return wasSaved;
+    }
+
+    /**
+     * Save all of the given objects to local storage in a single transaction, on a background thread. Saves are
+     * run one at a time, in the order they were requested
+     * @param context
+     * @param objects
+     * @param listener optional; called on the main thread with whether every object was saved
+     */
+    @Expand(isStatic = true)
+    public static void saveLocallyAsync(Context context, final Collection<? extends BaseLocallySavableCMObject> objects, @Optional final Response.Listener<Boolean> listener) {
+        final Context applicationContext = context.getApplicationContext();
+        getLocalStorageExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean saved;
+                try {
+                    saved = saveLocally(applicationContext, objects);
+                } catch (RuntimeException e) {
+                    LOG.error("Failed saving objects locally", e);
+                    saved = false;
+                }
+                if(listener == null) return;
+                final boolean wasSaved = saved;
+                new Handler(Looper.getMainLooper()).post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onResponse(wasSaved);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Set whether locally stored objects are compressed. Compression greatly reduces the size of the local database,
+     * at the cost of some CPU time on every local save and load. Objects that are already stored are converted on a
+     * background thread; until then, objects in either format can be read
+     * @param context
+     * @param compress
+     */
+    public static void setLocalObjectCompression(Context context, boolean compress) {
+        CMObjectDBOpenHelper.setCompressStoredObjects(compress);
+        final CMObjectDBOpenHelper cmObjectDBHelper = CMObjectDBOpenHelper.getCMObjectDBHelper(context);
+        getLocalStorageExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    int rewritten = cmObjectDBHelper.rewriteStoredObjects();
+                    LOG.debug("Converted " + rewritten + " locally stored objects");
+                } catch (RuntimeException e) {
+                    LOG.error("Failed converting locally stored objects", e);
+                }
+            }
+        });
+    }
+
+    private static ExecutorService localStorageExecutor;
+    private static synchronized ExecutorService getLocalStorageExecutor() {
+        if(localStorageExecutor == null) localStorageExecutor = Executors.newSingleThreadExecutor();
+        return localStorageExecutor;
+    }
+
     @JsonIgnore
     private Date lastLocalSaveDate;
 
@@ -197,10 +422,6 @@ public class BaseLocallySavableCMObject extends CMObject implements LocallySavab
             wasCreated = false;
             LOG.error("Failed", e);
         }
-        if(wasCreated) {
-            context.startService(new Intent(context, RequestPerformerService.class));
-        }
-
         return wasCreated;
     }
 
@@ -228,6 +449,32 @@ public class BaseLocallySavableCMObject extends CMObject implements LocallySavab
         return request;
     }
 
+    /**
+     * Save this object to the server as part of a batch, along with any other objects saved this way at about the same
+     * time with the same credentials and session. See {@link ObjectSaveBatcher}. The object is serialized when this is called
+     * @return true if the save was added to a batch, false if this is a user level object whose user is not logged in
+     */
+    @Expand
+    public boolean saveBatched(Context context, @Optional CMApiCredentials apiCredentials, @Optional CMServerFunction serverFunction, @Optional Response.Listener< ObjectModificationResponse > successListener, @Optional Response.ErrorListener errorListener) {
+        CMSessionToken sessionToken = null;
+        if(isUserLevel()) {
+            JavaCMUser user = getUser();
+            if(user == null || user.getSessionToken() == null) {
+                if(errorListener != null) errorListener.onErrorResponse(new VolleyError("Can't save user level object when the associated user is not logged in"));
+                return false;
+            }
+            sessionToken = user.getSessionToken();
+        }
+        ObjectSaveBatcher.getObjectSaveBatcher(context).save(this, sessionToken, apiCredentials, serverFunction, successListener, errorListener);
+        return true;
+    }
+
+    @Expand
+    public boolean saveBatched(Context context, CMSessionToken sessionToken, @Optional CMApiCredentials apiCredentials, @Optional CMServerFunction serverFunction, @Optional Response.Listener< ObjectModificationResponse > successListener, @Optional Response.ErrorListener errorListener) {
+        ObjectSaveBatcher.getObjectSaveBatcher(context).save(this, sessionToken, apiCredentials, serverFunction, successListener, errorListener);
+        return true;
+    }
+
     @Expand
     public CloudMineRequest save(Context context, CMSessionToken sessionToken, @Optional CMApiCredentials apiCredentials, @Optional CMServerFunction serverFunction, @Optional Response.Listener< ObjectModificationResponse > successListener, @Optional Response.ErrorListener errorListener) {
         RequestQueue queue = getRequestQueue(context);
@@ -3,8 +3,13 @@ package com.cloudmine.api.db;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.util.Log;
 import com.cloudmine.api.CMObject;
 import com.cloudmine.api.Strings;
 import com.cloudmine.api.persistance.ClassNameRegistry;
@@ -13,11 +18,17 @@ import com.cloudmine.api.rest.JsonUtilities;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
 
 /**
- * Stores CMObjects in a relational database
+ * Stores CMObjects in a relational database. The database is kept open for the life of the process, with write
+ * ahead logging enabled where the platform supports it, so reads are not blocked by writes. The hottest statements
+ * are compiled once and reused, and the JSON of recently used objects is kept in a {@link LocalObjectCache} so loading
+ * them by id again does not go to the database
  *
  * <br>
  * Copyright CloudMine, Inc. All rights reserved<br>
@@ -31,7 +42,9 @@ public class CMObjectDBOpenHelper extends SQLiteOpenHelper {
     public static final String CLASS_NAME_COLUMN = "CLASS_NAME";
     public static final String SAVED_DATE_COLUMN = "SAVED_DATE";
     public static final String SYNCED_DATE_COLUMN = "SYNCED_DATE";
-    public static final int DATABASE_VERSION = 2;
+    public static final int DATABASE_VERSION = 7;
+    /** The oldest version that can be migrated; anything older is dropped and recreated */
+    private static final int OLDEST_MIGRATABLE_VERSION = 2;
 
     private static final String CMOBJECT_DATABASE_CREATE = "create table " + CM_OBJECT_TABLE +
             " (" +
@@ -41,12 +54,58 @@ public class CMObjectDBOpenHelper extends SQLiteOpenHelper {
             SAVED_DATE_COLUMN + " integer not null, " +
             SYNCED_DATE_COLUMN + " integer" +
             ")";
+    private static final String CLASS_NAME_INDEX_CREATE = "CREATE INDEX IF NOT EXISTS " + CM_OBJECT_TABLE + "_" + CLASS_NAME_COLUMN +
+            " ON " + CM_OBJECT_TABLE + " (" + CLASS_NAME_COLUMN + ")";
+    private static final String SAVED_DATE_INDEX_CREATE = "CREATE INDEX IF NOT EXISTS " + CM_OBJECT_TABLE + "_" + SAVED_DATE_COLUMN +
+            " ON " + CM_OBJECT_TABLE + " (" + SAVED_DATE_COLUMN + ")";
+    private static final String SYNCED_DATE_INDEX_CREATE = "CREATE INDEX IF NOT EXISTS " + CM_OBJECT_TABLE + "_" + SYNCED_DATE_COLUMN +
+            " ON " + CM_OBJECT_TABLE + " (" + SYNCED_DATE_COLUMN + ")";
     private static final String OBJECT_ID_WHERE = OBJECT_ID_COLUMN + "=?";
-    private static final String MULTI_OBJECT_ID_WHERE = OBJECT_ID_COLUMN + " in (?)";
     private static final String UPDATE_OBJECT_WHERE = OBJECT_ID_WHERE + " AND " + SAVED_DATE_COLUMN + "<?";
     private static final String CLASS_SELECT_WHERE = CLASS_NAME_COLUMN + "=?";
     private static final String[] COLUMNS = {OBJECT_ID_COLUMN, CLASS_NAME_COLUMN, JSON_COLUMN, SAVED_DATE_COLUMN, SYNCED_DATE_COLUMN};
 
+    private static final String UPSERT_OBJECT_SQL = "INSERT OR REPLACE INTO " + CM_OBJECT_TABLE + " (" +
+            OBJECT_ID_COLUMN + ", " + CLASS_NAME_COLUMN + ", " + JSON_COLUMN + ", " + SAVED_DATE_COLUMN + ", " + SYNCED_DATE_COLUMN +
+            ") VALUES (?, ?, ?, ?, (SELECT " + SYNCED_DATE_COLUMN + " FROM " + CM_OBJECT_TABLE + " WHERE " + OBJECT_ID_WHERE + "))";
+    //Completed with a list of placeholders from ParameterChunks and a closing parenthesis
+    private static final String SELECT_BY_IDS_SQL_START = "SELECT " + OBJECT_ID_COLUMN + ", " + JSON_COLUMN + " FROM " + CM_OBJECT_TABLE +
+            " WHERE " + OBJECT_ID_COLUMN + " IN (";
+    private static final String SELECT_JSON_BY_ID_SQL = "SELECT " + JSON_COLUMN + " FROM " + CM_OBJECT_TABLE + " WHERE " + OBJECT_ID_WHERE;
+    //Cursors can't come from a SQLiteStatement; the database keeps this compiled because the SQL never changes
+    private static final String SELECT_BY_CLASS_SQL = "SELECT " + OBJECT_ID_COLUMN + ", " + CLASS_NAME_COLUMN + ", " + JSON_COLUMN + ", " +
+            SAVED_DATE_COLUMN + ", " + SYNCED_DATE_COLUMN + " FROM " + CM_OBJECT_TABLE + " WHERE " + CLASS_SELECT_WHERE;
+    private static final String UPDATE_JSON_SQL = "UPDATE " + CM_OBJECT_TABLE + " SET " + JSON_COLUMN + "=? WHERE " + OBJECT_ID_WHERE;
+    private static final int WRITE_AHEAD_LOGGING_SDK_VERSION = 11;
+    private static final int REWRITE_PAGE_SIZE = 500;
+    //Not a column; holds the JSON as it will be written, next to the plain JSON in JSON_COLUMN
+    private static final String STORED_JSON_KEY = "STORED_JSON";
+
+    private static volatile boolean compressStoredObjects = false;
+    private static final Set<String> textSearchClassNames = new CopyOnWriteArraySet<String>();
+
+    /**
+     * Add the string fields of objects of the given class to the full text index when they are saved
+     * @param className
+     */
+    static void enableTextSearch(String className) {
+        textSearchClassNames.add(className);
+    }
+
+    /**
+     * Set whether objects are compressed when they are stored. Compressed objects take much less space, at the cost
+     * of some CPU time when they are saved and loaded. Objects in either format can always be read; existing rows
+     * are only converted when they are saved again, or by {@link #rewriteStoredObjects()}
+     * @param compressStoredObjects
+     */
+    public static void setCompressStoredObjects(boolean compressStoredObjects) {
+        CMObjectDBOpenHelper.compressStoredObjects = compressStoredObjects;
+    }
+
+    public static boolean isCompressStoredObjects() {
+        return compressStoredObjects;
+    }
+
     private static final Object syncSingleton = new Object();
     private static CMObjectDBOpenHelper cmObjectDBOpenHelper;
     static synchronized CMObjectDBOpenHelper getCMObjectDBHelper(Context context) {
@@ -58,7 +117,20 @@ public class CMObjectDBOpenHelper extends SQLiteOpenHelper {
         return cmObjectDBOpenHelper;
     }
 
+    //Only writers take this lock, so it also guards upsertStatement; with write ahead logging, reads run alongside them
     private final Object syncDb = new Object();
+    //A compiled statement may only be used by one thread at a time
+    private final Object syncSelectJsonById = new Object();
+    private final Object syncStatements = new Object();
+    private SQLiteDatabase statementDatabase;
+    private SQLiteStatement upsertStatement;
+    private SQLiteStatement selectJsonByIdStatement;
+    //Used while holding syncDb, like upsertStatement
+    private LocalObjectFieldIndex fieldIndex;
+    private LocalObjectGeoIndex geoIndex;
+    //null if the full text index is unavailable
+    private LocalObjectTextIndex textIndex;
+    private final LocalObjectCache objectCache = new LocalObjectCache();
 
     public CMObjectDBOpenHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
@@ -67,156 +139,552 @@ public class CMObjectDBOpenHelper extends SQLiteOpenHelper {
     @Override
     public void onCreate(SQLiteDatabase sqLiteDatabase) {
         sqLiteDatabase.execSQL(CMOBJECT_DATABASE_CREATE);
+        createIndexes(sqLiteDatabase);
+        LocalObjectFieldIndex.createTable(sqLiteDatabase);
+        LocalObjectTextIndex.createTables(sqLiteDatabase);
+        LocalObjectGeoIndex.createTable(sqLiteDatabase);
+    }
+
+    private static void createIndexes(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL(CLASS_NAME_INDEX_CREATE);
+        sqLiteDatabase.execSQL(SAVED_DATE_INDEX_CREATE);
+        sqLiteDatabase.execSQL(SYNCED_DATE_INDEX_CREATE);
     }
 
+    /**
+     * Migrates the database one version at a time, so stored objects survive an upgrade. Only databases too old to
+     * know the layout of are dropped and recreated. This is run inside a transaction by SQLiteOpenHelper
+     */
     @Override
-    public void onUpgrade(SQLiteDatabase sqLiteDatabase, int i, int i2) {
-        //TODO upgrade gracefully
-        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + CM_OBJECT_TABLE);
-        onCreate(sqLiteDatabase);
+    public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
+        if(oldVersion < OLDEST_MIGRATABLE_VERSION) {
+            sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + CM_OBJECT_TABLE);
+            sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocalObjectFieldIndex.FIELD_TABLE);
+            LocalObjectTextIndex.dropTables(sqLiteDatabase);
+            sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocalObjectGeoIndex.GEO_TABLE);
+            onCreate(sqLiteDatabase);
+            return;
+        }
+        for(int version = oldVersion + 1; version <= newVersion; version++) {
+            upgradeTo(sqLiteDatabase, version);
+        }
+    }
+
+    /**
+     * Apply the changes made in the given version. Add a case here whenever DATABASE_VERSION is bumped
+     * @param sqLiteDatabase
+     * @param version
+     */
+    private static void upgradeTo(SQLiteDatabase sqLiteDatabase, int version) {
+        switch (version) {
+            case 3:
+                createIndexes(sqLiteDatabase);
+                break;
+            case 4:
+                LocalObjectFieldIndex.createTable(sqLiteDatabase);
+                LocalObjectFieldIndex.indexExistingObjects(sqLiteDatabase, CM_OBJECT_TABLE, OBJECT_ID_COLUMN, JSON_COLUMN);
+                break;
+            case 5:
+                //objects are added to the text index once their class has text search enabled
+                LocalObjectTextIndex.createTables(sqLiteDatabase);
+                break;
+            case 6:
+                LocalObjectGeoIndex.createTable(sqLiteDatabase);
+                LocalObjectGeoIndex.indexExistingObjects(sqLiteDatabase, CM_OBJECT_TABLE, OBJECT_ID_COLUMN, JSON_COLUMN);
+                break;
+            case 7:
+                //classes indexed before this version are indexed once more, then recorded
+                LocalObjectTextIndex.createIndexedClassTable(sqLiteDatabase);
+                break;
+            default:
+                throw new IllegalStateException("No migration to version " + version + " of " + DATABASE_NAME);
+        }
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        enableWriteAheadLogging(db);
+    }
+
+    /**
+     * Write ahead logging lets readers use the database while a write is in progress. It is only available from
+     * Honeycomb on, and we build against an older SDK, so it is looked up reflectively
+     */
+    private static void enableWriteAheadLogging(SQLiteDatabase db) {
+        if(Build.VERSION.SDK_INT < WRITE_AHEAD_LOGGING_SDK_VERSION || db.isReadOnly()) return;
+        try {
+            SQLiteDatabase.class.getMethod("enableWriteAheadLogging").invoke(db);
+        } catch (Exception e) {
+            Log.w("CloudMine", "Unable to enable write ahead logging", e);
+        }
+    }
+
+    /**
+     * The database is opened once and never closed, so it stays open for the life of the process rather than being
+     * reopened for every read and write
+     * @return
+     */
+    private SQLiteDatabase getDatabase() {
+        return getWritableDatabase();
+    }
+
+    private void prepareStatements() {
+        synchronized (syncStatements) {
+            SQLiteDatabase db = getDatabase();
+            if(db == statementDatabase) return;
+            upsertStatement = db.compileStatement(UPSERT_OBJECT_SQL);
+            selectJsonByIdStatement = db.compileStatement(SELECT_JSON_BY_ID_SQL);
+            fieldIndex = new LocalObjectFieldIndex(db);
+            geoIndex = new LocalObjectGeoIndex(db);
+            try {
+                textIndex = new LocalObjectTextIndex(db);
+            } catch (SQLException e) {
+                textIndex = null;
+            }
+            statementDatabase = db;
+        }
     }
 
     //TODO this just always updates right now - should we not insert older objects, how much processing power are we willing to devote to that?
     public boolean insertCMObjectIfNewer(BaseLocallySavableCMObject cmObject) {
         if(cmObject == null) return false;
+        ContentValues contentValues = toStorableContentValues(cmObject);
+        prepareStatements();
         synchronized (syncDb) {
-            SQLiteDatabase db = getWritableDatabase();
+            SQLiteDatabase db = getDatabase();
+            db.beginTransaction();
             try {
-                boolean wasInsertedOrUpdated;
-                ContentValues contentValues = cmObject.toContentValues();
-
-                int numUpdated = db.update(CM_OBJECT_TABLE, contentValues, OBJECT_ID_WHERE,
-                        new String[]{cmObject.getObjectId()});
-                wasInsertedOrUpdated = numUpdated > 0;
-                if(!wasInsertedOrUpdated) {
-                    long insertResult = db.insert(CM_OBJECT_TABLE, null, contentValues);
-                    wasInsertedOrUpdated = insertResult > 0;
+                if(!upsert(contentValues)) return false;
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            cacheSaved(contentValues);
+            return true;
+        }
+    }
+
+    /**
+     * Must be called while holding syncDb, inside a transaction
+     */
+    private boolean upsert(ContentValues contentValues) {
+        bindObject(upsertStatement, contentValues);
+        if(upsertStatement.executeInsert() == -1) return false;
+        fieldIndex.index(contentValues.getAsString(OBJECT_ID_COLUMN), contentValues.getAsString(JSON_COLUMN));
+        geoIndex.index(contentValues.getAsString(OBJECT_ID_COLUMN), contentValues.getAsString(JSON_COLUMN));
+        if(textIndex != null && textSearchClassNames.contains(contentValues.getAsString(CLASS_NAME_COLUMN))) {
+            textIndex.index(contentValues.getAsString(OBJECT_ID_COLUMN), contentValues.getAsString(JSON_COLUMN));
+        }
+        return true;
+    }
+
+    /**
+     * Add every stored object of the given class to the full text index, a page at a time. This is only done once per
+     * class; after that, objects are indexed as they are saved
+     * @param className
+     * @return the number of objects indexed; 0 if the class was already indexed
+     */
+    public int indexClassForTextSearch(String className) {
+        prepareStatements();
+        if(textIndex == null || LocalObjectTextIndex.isClassIndexed(getDatabase(), className)) return 0;
+        int indexed = 0;
+        String lastObjectId = "";
+        while(true) {
+            //each page is read under the write lock, so a save or delete can't land between reading a row and indexing it
+            synchronized (syncDb) {
+                SQLiteDatabase db = getDatabase();
+                db.beginTransaction();
+                try {
+                    Cursor cursor = db.query(CM_OBJECT_TABLE, new String[]{OBJECT_ID_COLUMN, JSON_COLUMN},
+                            CLASS_SELECT_WHERE + " AND " + OBJECT_ID_COLUMN + ">?", new String[]{className, lastObjectId},
+                            null, null, OBJECT_ID_COLUMN, String.valueOf(REWRITE_PAGE_SIZE));
+                    int pageSize;
+                    try {
+                        pageSize = cursor.getCount();
+                        while(cursor.moveToNext()) {
+                            lastObjectId = cursor.getString(0);
+                            textIndex.index(lastObjectId, LocalObjectEncoding.decode(cursor.getString(1)));
+                            indexed++;
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+                    if(pageSize < REWRITE_PAGE_SIZE) LocalObjectTextIndex.markClassIndexed(db, className);
+                    db.setTransactionSuccessful();
+                    if(pageSize < REWRITE_PAGE_SIZE) return indexed;
+                } finally {
+                    db.endTransaction();
                 }
+            }
+        }
+    }
+
+    /**
+     * @return true if the full text index is available, which depends on the SQLite build the platform ships
+     */
+    boolean isTextSearchAvailable() {
+        prepareStatements();
+        return textIndex != null;
+    }
+
+    /**
+     * Search the full text index
+     * @param query an FTS3 query, such as: coffee shop, "exact phrase" or caf*
+     * @param limit the most object ids to return; if less than 1, all of them are returned
+     * @return the ids of matching objects, those with the most hits first. Empty if the index is unavailable
+     */
+    public List<String> searchText(String query, int limit) {
+        prepareStatements();
+        if(textIndex == null || Strings.isEmpty(query)) return new ArrayList<String>();
+        return LocalObjectTextIndex.search(getDatabase(), query, limit);
+    }
 
-                return wasInsertedOrUpdated;
+    /**
+     * Insert or replace all of the given objects in a single transaction. Either every object is stored, or none are
+     * @param cmObjects
+     * @return true if all of the objects were stored
+     */
+    public boolean insertCMObjects(Collection<? extends BaseLocallySavableCMObject> cmObjects) {
+        if(cmObjects == null || cmObjects.isEmpty()) return true;
+        //serialize before taking the lock, so the write transaction only covers the inserts
+        List<ContentValues> allContentValues = new ArrayList<ContentValues>(cmObjects.size());
+        for(BaseLocallySavableCMObject cmObject : cmObjects) {
+            if(cmObject != null) allContentValues.add(toStorableContentValues(cmObject));
+        }
+        prepareStatements();
+        synchronized (syncDb) {
+            SQLiteDatabase db = getDatabase();
+            db.beginTransaction();
+            try {
+                for(ContentValues contentValues : allContentValues) {
+                    if(!upsert(contentValues)) return false;
+                }
+                db.setTransactionSuccessful();
             } finally {
-                db.close();
+                db.endTransaction();
+            }
+            for(ContentValues contentValues : allContentValues) {
+                cacheSaved(contentValues);
+            }
+            return true;
+        }
+    }
+
+    private static ContentValues toStorableContentValues(BaseLocallySavableCMObject cmObject) {
+        ContentValues contentValues = cmObject.toContentValues();
+        String json = contentValues.getAsString(JSON_COLUMN);
+        contentValues.put(STORED_JSON_KEY, compressStoredObjects ? LocalObjectEncoding.compress(json) : json);
+        return contentValues;
+    }
+
+    /**
+     * Rewrite every stored object whose format does not match {@link #isCompressStoredObjects()}. Rows are converted
+     * a page at a time, each page in its own transaction, so readers and writers are only held up briefly
+     * @return the number of objects that were rewritten
+     */
+    public int rewriteStoredObjects() {
+        int rewritten = 0;
+        String lastObjectId = "";
+        SQLiteStatement updateStatement = getDatabase().compileStatement(UPDATE_JSON_SQL);
+        try {
+            while(true) {
+                boolean compress = compressStoredObjects;
+                //the page is read under the write lock, so a save can't land between reading a row and rewriting it
+                synchronized (syncDb) {
+                    SQLiteDatabase db = getDatabase();
+                    db.beginTransaction();
+                    try {
+                        Cursor cursor = db.query(CM_OBJECT_TABLE, new String[]{OBJECT_ID_COLUMN, JSON_COLUMN}, OBJECT_ID_COLUMN + ">?",
+                                new String[]{lastObjectId}, null, null, OBJECT_ID_COLUMN, String.valueOf(REWRITE_PAGE_SIZE));
+                        try {
+                            if(cursor.getCount() == 0) return rewritten;
+                            while(cursor.moveToNext()) {
+                                lastObjectId = cursor.getString(0);
+                                String stored = cursor.getString(1);
+                                if(LocalObjectEncoding.isCompressed(stored) == compress) continue;
+                                String json = LocalObjectEncoding.decode(stored);
+                                if(json == null) continue;
+                                updateStatement.bindString(1, compress ? LocalObjectEncoding.compress(json) : json);
+                                updateStatement.bindString(2, lastObjectId);
+                                updateStatement.execute();
+                                rewritten++;
+                            }
+                        } finally {
+                            cursor.close();
+                        }
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                    }
+                }
             }
+        } finally {
+            updateStatement.close();
         }
     }
 
+    private void cacheSaved(ContentValues contentValues) {
+        objectCache.putJson(contentValues.getAsString(OBJECT_ID_COLUMN), contentValues.getAsString(JSON_COLUMN));
+    }
+
+    private static void bindObject(SQLiteStatement statement, ContentValues contentValues) {
+        String objectId = contentValues.getAsString(OBJECT_ID_COLUMN);
+        statement.clearBindings();
+        statement.bindString(1, objectId);
+        statement.bindString(2, contentValues.getAsString(CLASS_NAME_COLUMN));
+        statement.bindString(3, contentValues.getAsString(STORED_JSON_KEY));
+        statement.bindLong(4, contentValues.getAsLong(SAVED_DATE_COLUMN));
+        statement.bindString(5, objectId);
+    }
+
     public <OBJECT_TYPE extends BaseLocallySavableCMObject> OBJECT_TYPE loadObjectById(String objectId) {
         if(Strings.isEmpty(objectId)) return null;
 
-        synchronized (syncDb) {
-            SQLiteDatabase db = getReadableDatabase();
+        OBJECT_TYPE cached = objectCache.get(objectId);
+        if(cached != null) return cached;
+
+        String json;
+        //taken before the read, so a save or delete that happens after it keeps what we read out of the cache
+        long readGeneration = objectCache.generation();
+        prepareStatements();
+        synchronized (syncSelectJsonById) {
+            selectJsonByIdStatement.bindString(1, objectId);
             try {
-                Cursor cursor = db.query(CM_OBJECT_TABLE, new String[]{JSON_COLUMN}, OBJECT_ID_WHERE, new String[]{objectId}, null, null, null);
-                if(!cursor.moveToNext()) return null;
-                return fromCursor(cursor);
-            }finally {
-                db.close();
+                json = selectJsonByIdStatement.simpleQueryForString();
+            } catch (SQLiteDoneException noResult) {
+                return null;
             }
         }
+        json = LocalObjectEncoding.decode(json);
+        OBJECT_TYPE decoded = fromJson(json);
+        if(decoded == null) return null;
+        objectCache.putRead(objectId, json, readGeneration);
+        return decoded;
     }
 
     public List<BaseLocallySavableCMObject> loadAllObjects() {
-        synchronized (syncDb) {
-            SQLiteDatabase db = getReadableDatabase();
-            List<BaseLocallySavableCMObject> allObjects = new ArrayList<BaseLocallySavableCMObject>();
-            try {
-                Cursor cursor = db.query(CM_OBJECT_TABLE, new String[] {JSON_COLUMN}, null, null, null, null, null);
-                while (cursor.moveToNext()) {
-                    BaseLocallySavableCMObject object = fromCursor(cursor);
-                    allObjects.add(object);
-                }
-            } finally {
-                db.close();
+        List<BaseLocallySavableCMObject> allObjects = new ArrayList<BaseLocallySavableCMObject>();
+        Cursor cursor = getDatabase().query(CM_OBJECT_TABLE, new String[] {JSON_COLUMN}, null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                BaseLocallySavableCMObject object = fromCursor(cursor);
+                allObjects.add(object);
             }
-            return allObjects;
+        } finally {
+            cursor.close();
         }
+        return allObjects;
+    }
+
+    /**
+     * Like {@link #loadAllObjects()}, but objects are only deserialized as they are accessed. The returned list must
+     * be closed
+     * @return
+     */
+    public LocalObjectCursorList<BaseLocallySavableCMObject> loadAllObjectsLazily() {
+        Cursor cursor = getDatabase().query(CM_OBJECT_TABLE, new String[] {JSON_COLUMN}, null, null, null, null, null);
+        return new LocalObjectCursorList<BaseLocallySavableCMObject>(cursor, JSON_COLUMN);
+    }
+
+    /**
+     * Like {@link #loadObjectsByClass(Class)}, but objects are only deserialized as they are accessed. The returned
+     * list must be closed
+     * @return
+     */
+    public <TYPE extends BaseLocallySavableCMObject> LocalObjectCursorList<TYPE> loadObjectsByClassLazily(Class <TYPE> klass) {
+        String[] args = {ClassNameRegistry.forClass(klass)};
+        Cursor cursor = getDatabase().rawQuery(SELECT_BY_CLASS_SQL, args);
+        return new LocalObjectCursorList<TYPE>(cursor, JSON_COLUMN);
     }
 
     public int deleteObjectById(String objectId) {
         if(Strings.isEmpty(objectId)) return 0;
 
+        prepareStatements();
         synchronized (syncDb) {
-            SQLiteDatabase db = getWritableDatabase();
+            SQLiteDatabase db = getDatabase();
+            db.beginTransaction();
             try {
-                return db.delete(CM_OBJECT_TABLE, OBJECT_ID_WHERE, new String[]{objectId});
-            }finally {
-                db.close();
+                int deleted = db.delete(CM_OBJECT_TABLE, OBJECT_ID_WHERE, new String[]{objectId});
+                fieldIndex.remove(objectId);
+                geoIndex.remove(objectId);
+                if(textIndex != null) textIndex.remove(objectId);
+                db.setTransactionSuccessful();
+                return deleted;
+            } finally {
+                db.endTransaction();
+                objectCache.remove(objectId);
             }
         }
     }
 
+    /**
+     * Load the stored JSON of the objects with the given ids. The ids are bound as parameters, in chunks that fit
+     * within SQLite's parameter limit, so any number of ids can be looked up
+     * @param objectIds
+     * @return object id to JSON, for each of the ids that is stored
+     */
     public Map<String, String> loadObjectJsonById(Collection <String> objectIds) {
         Map<String, String> objectIdsToJson = new HashMap<String, String>();
-
-        synchronized (syncDb) {
-            SQLiteDatabase db = getReadableDatabase();
+        for(String[] idChunk : ParameterChunks.chunk(objectIds, 0)) {
+            Cursor cursor = getDatabase().rawQuery(SELECT_BY_IDS_SQL_START + ParameterChunks.placeholders(idChunk.length) + ")", idChunk);
             try {
-                StringBuilder queryBuilder = new StringBuilder(OBJECT_ID_COLUMN).append(" IN (").append(collectionToCsv(objectIds)).append(")");
-                Cursor cursor = db.query(CM_OBJECT_TABLE, new String[] {JSON_COLUMN, OBJECT_ID_COLUMN}, queryBuilder.toString(), null, null, null, null);
-
-                int jsonIndex = cursor.getColumnIndex(JSON_COLUMN);
-                int objectIdIndex = cursor.getColumnIndex(OBJECT_ID_COLUMN);
-
-                while (!cursor.isClosed() && cursor.moveToNext()) {
-                    String json = cursor.getString(jsonIndex);
-                    String objectId = cursor.getString(objectIdIndex);
+                while (cursor.moveToNext()) {
+                    String objectId = cursor.getString(0);
+                    String json = LocalObjectEncoding.decode(cursor.getString(1));
                     objectIdsToJson.put(objectId, json);
                 }
             }
             finally {
-                db.close();
+                cursor.close();
             }
         }
         return objectIdsToJson;
     }
 
+    /**
+     * Load the objects with the given ids. Objects in the object cache are decoded from there; the rest are loaded
+     * with {@link #loadObjectJsonById(java.util.Collection)} and cached
+     * @param objectIds
+     * @return the objects that are stored, in no particular order
+     */
+    public <TYPE extends BaseLocallySavableCMObject> List<TYPE> loadObjectsById(Collection<String> objectIds) {
+        List<TYPE> objects = new ArrayList<TYPE>();
+        if(objectIds == null || objectIds.isEmpty()) return objects;
+        Set<String> toLoad = new HashSet<String>();
+        for(String objectId : objectIds) {
+            TYPE cached = objectCache.get(objectId);
+            if(cached != null) objects.add(cached);
+            else if(Strings.isNotEmpty(objectId)) toLoad.add(objectId);
+        }
+        if(toLoad.isEmpty()) return objects;
+        long readGeneration = objectCache.generation();
+        for(Map.Entry<String, String> idAndJson : loadObjectJsonById(toLoad).entrySet()) {
+            TYPE object = fromJson(idAndJson.getValue());
+            if(object == null) continue;
+            objects.add(object);
+            objectCache.putRead(idAndJson.getKey(), idAndJson.getValue(), readGeneration);
+        }
+        return objects;
+    }
+
+    /**
+     * Load the stored objects that are, or contain, a geopoint within the given distance of a point. Candidates are
+     * found with the geo index, so only the returned objects are deserialized
+     * @param latitude
+     * @param longitude
+     * @param radiusKm
+     * @param limit the most objects to return; if less than 1, all of them are returned
+     * @return the matching objects, nearest first
+     */
+    public <TYPE extends BaseLocallySavableCMObject> List<TYPE> loadObjectsNear(double latitude, double longitude, double radiusKm, int limit) {
+        return loadObjectsInOrder(LocalObjectGeoIndex.findNear(getDatabase(), latitude, longitude, radiusKm, limit));
+    }
+
+    /**
+     * Load the stored objects that are, or contain, a geopoint inside the given box
+     * @param south
+     * @param west
+     * @param north
+     * @param east if less than west, the box crosses the antimeridian
+     * @param limit the most objects to return; if less than 1, all of them are returned
+     * @return the matching objects, nearest the center of the box first
+     */
+    public <TYPE extends BaseLocallySavableCMObject> List<TYPE> loadObjectsWithin(double south, double west, double north, double east, int limit) {
+        return loadObjectsInOrder(LocalObjectGeoIndex.findWithin(getDatabase(), south, west, north, east, limit));
+    }
+
+    private <TYPE extends BaseLocallySavableCMObject> List<TYPE> loadObjectsInOrder(List<String> objectIds) {
+        Map<String, TYPE> objectsById = new HashMap<String, TYPE>();
+        for(BaseLocallySavableCMObject object : loadObjectsById(objectIds)) {
+            objectsById.put(object.getObjectId(), (TYPE) object);
+        }
+        List<TYPE> ordered = new ArrayList<TYPE>(objectsById.size());
+        for(String objectId : objectIds) {
+            TYPE object = objectsById.get(objectId);
+            if(object != null) ordered.add(object);
+        }
+        return ordered;
+    }
+
     public <TYPE> int deleteObjectsByClass(Class<TYPE> klass) {
         String[] args = {ClassNameRegistry.forClass(klass)};
+        prepareStatements();
         synchronized (syncDb) {
-            SQLiteDatabase writableDatabase = getWritableDatabase();
+            SQLiteDatabase db = getDatabase();
+            db.beginTransaction();
             try {
-                return writableDatabase.delete(CM_OBJECT_TABLE, CLASS_SELECT_WHERE, args);
-            } catch (Throwable t) {} finally {
-                writableDatabase.close();
+                String objectIdsOfClass = " IN (SELECT " + OBJECT_ID_COLUMN + " FROM " + CM_OBJECT_TABLE + " WHERE " + CLASS_SELECT_WHERE + ")";
+                db.delete(LocalObjectFieldIndex.FIELD_TABLE, LocalObjectFieldIndex.OBJECT_ID_COLUMN + objectIdsOfClass, args);
+                db.delete(LocalObjectGeoIndex.GEO_TABLE, LocalObjectGeoIndex.OBJECT_ID_COLUMN + objectIdsOfClass, args);
+                if(textIndex != null) {
+                    db.delete(LocalObjectTextIndex.TEXT_TABLE, "docid IN (SELECT " + LocalObjectTextIndex.DOCUMENT_ID_COLUMN + " FROM " +
+                            LocalObjectTextIndex.DOCUMENT_TABLE + " WHERE " + LocalObjectTextIndex.OBJECT_ID_COLUMN + objectIdsOfClass + ")", args);
+                    db.delete(LocalObjectTextIndex.DOCUMENT_TABLE, LocalObjectTextIndex.OBJECT_ID_COLUMN + objectIdsOfClass, args);
+                }
+                int deleted = db.delete(CM_OBJECT_TABLE, CLASS_SELECT_WHERE, args);
+                db.setTransactionSuccessful();
+                return deleted;
+            } catch (Throwable t) {
                 return 0;
+            } finally {
+                db.endTransaction();
+                //cached objects aren't indexed by class, so drop them all
+                objectCache.clear();
             }
         }
     }
 
     public <TYPE extends BaseLocallySavableCMObject> List<TYPE> loadObjectsByClass(Class <TYPE> klass) {
         String[] args = {ClassNameRegistry.forClass(klass)};
-        synchronized (syncDb) {
-            SQLiteDatabase readableDatabase = getReadableDatabase();
-            try {
-                Cursor results = readableDatabase.query(CM_OBJECT_TABLE, COLUMNS, CLASS_SELECT_WHERE, args, null, null, null, null);
-                List<TYPE> resultList = new ArrayList<TYPE>();
-                while (results.moveToNext()) {
-                    resultList.add((TYPE)fromCursor(results));
-                }
-                return resultList;
-            }finally{
-                readableDatabase.close();
+        Cursor results = getDatabase().rawQuery(SELECT_BY_CLASS_SQL, args);
+        try {
+            List<TYPE> resultList = new ArrayList<TYPE>();
+            while (results.moveToNext()) {
+                resultList.add((TYPE)fromCursor(results));
             }
+            return resultList;
+        }finally{
+            results.close();
         }
     }
 
 
-    private String collectionToCsv(Collection<? extends Object> collection) {
-        if(collection == null || collection.isEmpty())
-            return "";
-        StringBuilder csvBuilder = new StringBuilder();
-        String separator = "";
-
-        for(Object element : collection) {
-            csvBuilder.append(separator).append('"').append(element).append('"');
-            separator = ", ";
+    /**
+     * Find the stored objects that match the given search string. Filtering is done in the database, against the
+     * fields extracted when each object was saved, so only matching objects are deserialized
+     * @param searchString a CloudMine search string, such as [__class__="car", wheels > 3]
+     * @return
+     * @throws IllegalArgumentException if the search string is malformed or uses syntax not supported locally
+     */
+    public <TYPE extends BaseLocallySavableCMObject> List<TYPE> searchObjects(String searchString) {
+        LocalSearchQuery query = LocalSearchQuery.parse(searchString, OBJECT_ID_COLUMN, CLASS_NAME_COLUMN);
+        Cursor results = getDatabase().query(CM_OBJECT_TABLE, new String[]{JSON_COLUMN}, query.getSelection(), query.getSelectionArgs(), null, null, null);
+        try {
+            List<TYPE> resultList = new ArrayList<TYPE>();
+            while (results.moveToNext()) {
+                TYPE object = fromCursor(results);
+                if(object != null) resultList.add(object);
+            }
+            return resultList;
+        } finally {
+            results.close();
         }
-        return csvBuilder.toString();
     }
 
     private static <OBJECT_TYPE extends BaseLocallySavableCMObject> OBJECT_TYPE fromCursor(Cursor cursor) {
         int jsonIndex = cursor.getColumnIndex(JSON_COLUMN);
-        String json = cursor.getString(jsonIndex);
+        return fromJson(cursor.getString(jsonIndex));
+    }
+
+    /**
+     * Deserialize a stored object
+     * @param json the JSON, in either of the formats written by {@link LocalObjectEncoding}
+     * @return
+     */
+    static <OBJECT_TYPE extends BaseLocallySavableCMObject> OBJECT_TYPE fromJson(String json) {
+        json = LocalObjectEncoding.decode(json);
         if(Strings.isEmpty(json)) return null;
         Map<String,CMObject> stringCMObjectMap = JsonUtilities.jsonToClassMap(json);
         if(stringCMObjectMap.isEmpty()) return null;
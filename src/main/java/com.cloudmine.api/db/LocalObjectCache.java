@@ -0,0 +1,146 @@
+package com.cloudmine.api.db;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A size bounded map of the JSON of recently read or saved local objects, keyed by object id, so loading them again
+ * skips the database read and any decompression. Only the JSON is kept: every read still decodes its own instance with
+ * {@link CMObjectDBOpenHelper#fromJson(String)}, the same path used for objects that aren't cached, so callers are free
+ * to modify what they are given and cached objects deserialize exactly like uncached ones. Decoded instances are not
+ * cached because the mapper configuration fromJson relies on is private to JsonUtilities, so a copy could not be made
+ * without going back through the JSON.<br>
+ * Every save and delete is stamped with a generation. Readers take the generation before reading the database, and
+ * what they read is only cached if no write to the same object happened since. Deletes leave a tombstone behind for
+ * this, so a read racing a delete can't put the deleted object back; tombstones are bounded separately, so deleting
+ * objects never pushes live ones out of the cache.
+ * <br>
+ * Copyright CloudMine, Inc. All rights reserved<br>
+ * See LICENSE file included with SDK for details.
+ */
+class LocalObjectCache {
+    public static final int DEFAULT_MAX_ENTRIES = 256;
+
+    private final Map<String, CachedObject> cache;
+    //object id to the generation of its delete
+    private final Map<String, Long> tombstones;
+    private long generation;
+    //the newest generation of anything evicted or cleared; a read older than this can't tell if its object was written
+    private long forgottenGeneration;
+
+    LocalObjectCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    LocalObjectCache(final int maxEntries) {
+        cache = new LinkedHashMap<String, CachedObject>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedObject> eldest) {
+                if(size() <= maxEntries) return false;
+                forget(eldest.getValue().generation);
+                return true;
+            }
+        };
+        tombstones = new LinkedHashMap<String, Long>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                if(size() <= maxEntries) return false;
+                forget(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    private void forget(long forgotten) {
+        forgottenGeneration = Math.max(forgottenGeneration, forgotten);
+    }
+
+    /**
+     * @return the current generation; take this before reading an object from the database, and pass it to
+     * {@link #putRead(String, String, long)}
+     */
+    long generation() {
+        synchronized (cache) {
+            return generation;
+        }
+    }
+
+    /**
+     * Decode the cached object with the given id
+     * @param objectId
+     * @return a new instance, or null if the object is not cached
+     */
+    <OBJECT_TYPE extends BaseLocallySavableCMObject> OBJECT_TYPE get(String objectId) {
+        CachedObject cached;
+        synchronized (cache) {
+            cached = cache.get(objectId);
+        }
+        if(cached == null) return null;
+        return CMObjectDBOpenHelper.fromJson(cached.json);
+    }
+
+    /**
+     * Cache the JSON of an object that was just read from the database, unless the object was saved or deleted since
+     * it was read
+     * @param objectId
+     * @param json
+     * @param readGeneration the result of {@link #generation()} from before the JSON was read
+     */
+    void putRead(String objectId, String json, long readGeneration) {
+        if(json == null) return;
+        synchronized (cache) {
+            if(cache.containsKey(objectId)) return;
+            Long deletedGeneration = tombstones.get(objectId);
+            if(deletedGeneration != null) {
+                if(deletedGeneration > readGeneration) return;
+                tombstones.remove(objectId);
+            } else if(forgottenGeneration > readGeneration) {
+                return;
+            }
+            cache.put(objectId, new CachedObject(json, deletedGeneration == null ? readGeneration : deletedGeneration));
+        }
+    }
+
+    /**
+     * Replace whatever is cached for the object with its newly stored JSON
+     * @param objectId
+     * @param json
+     */
+    void putJson(String objectId, String json) {
+        synchronized (cache) {
+            tombstones.remove(objectId);
+            cache.put(objectId, new CachedObject(json, ++generation));
+        }
+    }
+
+    /**
+     * Forget the object, leaving a tombstone so that reads that started before it was deleted don't cache it again
+     * @param objectId
+     */
+    void remove(String objectId) {
+        synchronized (cache) {
+            cache.remove(objectId);
+            //removed first so the newest tombstones are the last to be evicted
+            tombstones.remove(objectId);
+            tombstones.put(objectId, ++generation);
+        }
+    }
+
+    void clear() {
+        synchronized (cache) {
+            cache.clear();
+            tombstones.clear();
+            forgottenGeneration = ++generation;
+        }
+    }
+
+    private static class CachedObject {
+        private final String json;
+        private final long generation;
+
+        CachedObject(String json, long generation) {
+            this.json = json;
+            this.generation = generation;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.cloudmine.api.db;
+
+import android.database.Cursor;
+
+import java.io.Closeable;
+import java.util.AbstractList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A read only List of locally stored objects that is backed by a database cursor. Rows are only deserialized when
+ * they are accessed, and the most recently accessed objects are kept in a small LRU cache, so the time to get the first
+ * object and the memory used do not grow with the number of results. Suitable for handing straight to an adapter.
+ * The list holds an open cursor: call {@link #close()} once it is no longer needed. The rows are read as the list is
+ * accessed, so objects saved or deleted after the list was created may or may not be reflected in it.<br>
+ * Creating the list does not touch the rows. The size is counted the first time it is needed, by {@link #size()} or
+ * {@link #get(int)}; counting steps through the whole result set once, without deserializing anything, which is also
+ * what the cursor does the first time it is moved.
+ * <br>
+ * Copyright CloudMine, Inc. All rights reserved<br>
+ * See LICENSE file included with SDK for details.
+ */
+public class LocalObjectCursorList<OBJECT_TYPE extends BaseLocallySavableCMObject> extends AbstractList<OBJECT_TYPE> implements Closeable {
+
+    public static final int DEFAULT_CACHE_SIZE = 64;
+
+    private final Cursor cursor;
+    private final int jsonIndex;
+    //-1 until counted
+    private int size = -1;
+    private final Map<Integer, OBJECT_TYPE> recentlyDecoded;
+
+    LocalObjectCursorList(Cursor cursor, String jsonColumn) {
+        this(cursor, jsonColumn, DEFAULT_CACHE_SIZE);
+    }
+
+    LocalObjectCursorList(Cursor cursor, String jsonColumn, final int cacheSize) {
+        this.cursor = cursor;
+        this.jsonIndex = cursor.getColumnIndexOrThrow(jsonColumn);
+        this.recentlyDecoded = new LinkedHashMap<Integer, OBJECT_TYPE>(cacheSize, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, OBJECT_TYPE> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Get the object at the given position, deserializing it if it was not accessed recently. May be null if the
+     * stored row could not be deserialized
+     * @param location
+     * @return
+     */
+    @Override
+    public synchronized OBJECT_TYPE get(int location) {
+        OBJECT_TYPE object = recentlyDecoded.get(location);
+        if(object != null) return object;
+        int size = size();
+        if(location < 0 || location >= size) throw new IndexOutOfBoundsException("Invalid index " + location + ", size is " + size);
+        if(cursor.isClosed()) throw new IllegalStateException("List has been closed");
+        if(!cursor.moveToPosition(location)) return null;
+        object = CMObjectDBOpenHelper.fromJson(cursor.getString(jsonIndex));
+        if(object != null) recentlyDecoded.put(location, object);
+        return object;
+    }
+
+    /**
+     * The number of rows. Counted on the first call, which steps through the result set once
+     * @return
+     * @throws IllegalStateException if the list was closed before it was counted
+     */
+    @Override
+    public synchronized int size() {
+        if(size < 0) {
+            if(cursor.isClosed()) throw new IllegalStateException("List has been closed");
+            size = cursor.getCount();
+        }
+        return size;
+    }
+
+    /**
+     * Close the underlying cursor. Objects that are still cached can be read afterwards; anything else throws an
+     * IllegalStateException
+     */
+    @Override
+    public synchronized void close() {
+        cursor.close();
+    }
+
+    public synchronized boolean isClosed() {
+        return cursor.isClosed();
+    }
+}
@@ -0,0 +1,92 @@
+package com.cloudmine.api.db;
+
+import android.util.Base64;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encodes the JSON of locally stored objects. Compressed objects are deflated and stored as Base64 text with a
+ * prefix that JSON can never start with, so rows in either format can be read back with {@link #decode(String)},
+ * and rows written before compression was turned on keep working until they are rewritten.
+ * <br>
+ * Copyright CloudMine, Inc. All rights reserved<br>
+ * See LICENSE file included with SDK for details.
+ */
+class LocalObjectEncoding {
+    private static final Logger LOG = LoggerFactory.getLogger(LocalObjectEncoding.class);
+
+    static final String COMPRESSED_PREFIX = "z:";
+    private static final String UTF_8 = "UTF-8";
+    private static final int BUFFER_SIZE = 4096;
+
+    /**
+     * Deflate the given JSON, if doing so makes it smaller
+     * @param json
+     * @return the compressed form, or the JSON itself
+     */
+    static String compress(String json) {
+        if(json == null) return null;
+        try {
+            byte[] input = json.getBytes(UTF_8);
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(input);
+                deflater.finish();
+                ByteArrayOutputStream output = new ByteArrayOutputStream(input.length / 2);
+                byte[] buffer = new byte[BUFFER_SIZE];
+                while(!deflater.finished()) {
+                    int length = deflater.deflate(buffer);
+                    output.write(buffer, 0, length);
+                }
+                String compressed = COMPRESSED_PREFIX + Base64.encodeToString(output.toByteArray(), Base64.NO_WRAP);
+                return compressed.length() < json.length() ? compressed : json;
+            } finally {
+                deflater.end();
+            }
+        } catch (UnsupportedEncodingException e) {
+            return json;
+        }
+    }
+
+    /**
+     * Get the JSON back out of a stored value, whether or not it was compressed
+     * @param stored
+     * @return
+     */
+    static String decode(String stored) {
+        if(!isCompressed(stored)) return stored;
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(Base64.decode(stored.substring(COMPRESSED_PREFIX.length()), Base64.NO_WRAP));
+            ByteArrayOutputStream output = new ByteArrayOutputStream(stored.length() * 4);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while(!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if(length == 0 && (inflater.needsInput() || inflater.needsDictionary())) throw new DataFormatException("Truncated data");
+                output.write(buffer, 0, length);
+            }
+            return output.toString(UTF_8);
+        } catch (DataFormatException e) {
+            LOG.error("Unable to decompress stored object", e);
+            return null;
+        } catch (IllegalArgumentException e) {
+            LOG.error("Unable to decode stored object", e);
+            return null;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    static boolean isCompressed(String stored) {
+        return stored != null && stored.startsWith(COMPRESSED_PREFIX);
+    }
+}
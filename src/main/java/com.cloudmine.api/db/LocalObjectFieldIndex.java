@@ -0,0 +1,174 @@
+package com.cloudmine.api.db;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * Keeps a side table of the values stored in each locally saved object, one row per (object id, field path, value).
+ * Nested fields are stored under their dotted path, and every element of an array is stored under the array's path.
+ * Local searches filter on this table in SQLite, so only objects that match are ever deserialized. Not thread safe;
+ * callers must hold the database's write lock.
+ * <br>
+ * Copyright CloudMine, Inc. All rights reserved<br>
+ * See LICENSE file included with SDK for details.
+ */
+class LocalObjectFieldIndex {
+    private static final Logger LOG = LoggerFactory.getLogger(LocalObjectFieldIndex.class);
+
+    public static final String FIELD_TABLE = "CMObjectFieldTable";
+    public static final String OBJECT_ID_COLUMN = "OBJECT_ID";
+    public static final String FIELD_PATH_COLUMN = "FIELD_PATH";
+    public static final String VALUE_TYPE_COLUMN = "VALUE_TYPE";
+    public static final String STRING_VALUE_COLUMN = "STRING_VALUE";
+    public static final String NUMBER_VALUE_COLUMN = "NUMBER_VALUE";
+
+    public static final String TYPE_STRING = "s";
+    public static final String TYPE_NUMBER = "n";
+    public static final String TYPE_BOOLEAN = "b";
+
+    private static final String FIELD_TABLE_CREATE = "CREATE TABLE IF NOT EXISTS " + FIELD_TABLE +
+            " (" +
+            OBJECT_ID_COLUMN + " text not null, " +
+            FIELD_PATH_COLUMN + " text not null, " +
+            VALUE_TYPE_COLUMN + " text not null, " +
+            STRING_VALUE_COLUMN + " text, " +
+            NUMBER_VALUE_COLUMN + " real" +
+            ")";
+    private static final String[] INDEXES_CREATE = {
+            "CREATE INDEX IF NOT EXISTS " + FIELD_TABLE + "_" + OBJECT_ID_COLUMN + " ON " + FIELD_TABLE + " (" + OBJECT_ID_COLUMN + ")",
+            "CREATE INDEX IF NOT EXISTS " + FIELD_TABLE + "_" + STRING_VALUE_COLUMN + " ON " + FIELD_TABLE + " (" + FIELD_PATH_COLUMN + ", " + STRING_VALUE_COLUMN + ")",
+            "CREATE INDEX IF NOT EXISTS " + FIELD_TABLE + "_" + NUMBER_VALUE_COLUMN + " ON " + FIELD_TABLE + " (" + FIELD_PATH_COLUMN + ", " + NUMBER_VALUE_COLUMN + ")"
+    };
+    private static final String INSERT_FIELD_SQL = "INSERT INTO " + FIELD_TABLE + " (" +
+            OBJECT_ID_COLUMN + ", " + FIELD_PATH_COLUMN + ", " + VALUE_TYPE_COLUMN + ", " + STRING_VALUE_COLUMN + ", " + NUMBER_VALUE_COLUMN +
+            ") VALUES (?, ?, ?, ?, ?)";
+    private static final String DELETE_OBJECT_SQL = "DELETE FROM " + FIELD_TABLE + " WHERE " + OBJECT_ID_COLUMN + "=?";
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    static void createTable(SQLiteDatabase db) {
+        db.execSQL(FIELD_TABLE_CREATE);
+        for(String indexCreate : INDEXES_CREATE) {
+            db.execSQL(indexCreate);
+        }
+    }
+
+    /**
+     * Index every object already in the object table; used when the field table is added to an existing database
+     * @param db
+     * @param objectTable
+     * @param objectIdColumn
+     * @param jsonColumn
+     */
+    static void indexExistingObjects(SQLiteDatabase db, String objectTable, String objectIdColumn, String jsonColumn) {
+        LocalObjectFieldIndex fieldIndex = new LocalObjectFieldIndex(db);
+        Cursor cursor = db.query(objectTable, new String[]{objectIdColumn, jsonColumn}, null, null, null, null, null);
+        try {
+            while(cursor.moveToNext()) {
+                fieldIndex.index(cursor.getString(0), LocalObjectEncoding.decode(cursor.getString(1)));
+            }
+        } finally {
+            cursor.close();
+            fieldIndex.close();
+        }
+    }
+
+    private final SQLiteStatement insertFieldStatement;
+    private final SQLiteStatement deleteObjectStatement;
+
+    LocalObjectFieldIndex(SQLiteDatabase db) {
+        insertFieldStatement = db.compileStatement(INSERT_FIELD_SQL);
+        deleteObjectStatement = db.compileStatement(DELETE_OBJECT_SQL);
+    }
+
+    /**
+     * Replace the indexed values for the given object with the values in its JSON
+     * @param objectId
+     * @param transportableJson the object as it is stored, keyed by its id
+     */
+    void index(String objectId, String transportableJson) {
+        remove(objectId);
+        if(transportableJson == null) return;
+        try {
+            JsonParser parser = JSON_FACTORY.createParser(transportableJson);
+            try {
+                //The stored JSON is {"objectId":{...}}; index the fields of the inner object
+                if(parser.nextToken() != JsonToken.START_OBJECT ||
+                        parser.nextToken() != JsonToken.FIELD_NAME ||
+                        parser.nextToken() != JsonToken.START_OBJECT) return;
+                indexValue(parser, objectId, null);
+            } finally {
+                parser.close();
+            }
+        } catch (IOException e) {
+            //The object is still stored; it just won't be found by local searches
+            LOG.error("Unable to index fields of object " + objectId, e);
+        }
+    }
+
+    private void indexValue(JsonParser parser, String objectId, String path) throws IOException {
+        switch(parser.getCurrentToken()) {
+            case START_OBJECT:
+                while(parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = parser.getCurrentName();
+                    parser.nextToken();
+                    indexValue(parser, objectId, path == null ? name : path + "." + name);
+                }
+                break;
+            case START_ARRAY:
+                while(parser.nextToken() != JsonToken.END_ARRAY) {
+                    indexValue(parser, objectId, path);
+                }
+                break;
+            case VALUE_STRING:
+                insertField(objectId, path, TYPE_STRING, parser.getText(), null);
+                break;
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                insertField(objectId, path, TYPE_NUMBER, null, parser.getDoubleValue());
+                break;
+            case VALUE_TRUE:
+                insertField(objectId, path, TYPE_BOOLEAN, null, 1.0);
+                break;
+            case VALUE_FALSE:
+                insertField(objectId, path, TYPE_BOOLEAN, null, 0.0);
+                break;
+            default:
+                //nulls are not stored; a search for null matches objects without a value
+                break;
+        }
+    }
+
+    private void insertField(String objectId, String path, String type, String stringValue, Double numberValue) {
+        if(path == null) return;
+        insertFieldStatement.clearBindings();
+        insertFieldStatement.bindString(1, objectId);
+        insertFieldStatement.bindString(2, path);
+        insertFieldStatement.bindString(3, type);
+        if(stringValue != null) insertFieldStatement.bindString(4, stringValue);
+        if(numberValue != null) insertFieldStatement.bindDouble(5, numberValue);
+        insertFieldStatement.executeInsert();
+    }
+
+    /**
+     * Remove all of the indexed values for the given object
+     * @param objectId
+     */
+    void remove(String objectId) {
+        deleteObjectStatement.bindString(1, objectId);
+        deleteObjectStatement.execute();
+    }
+
+    void close() {
+        insertFieldStatement.close();
+        deleteObjectStatement.close();
+    }
+}
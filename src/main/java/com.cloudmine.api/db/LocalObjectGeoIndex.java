@@ -0,0 +1,287 @@
+package com.cloudmine.api.db;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps a side table of the coordinates of every geopoint in the locally saved objects, whether the object is a
+ * geopoint itself or has them as fields. Lookups narrow down candidates with a range scan over an index on latitude,
+ * so only points inside the bounding box are read, and only the objects that are returned are deserialized. SQLite's
+ * R*Tree module isn't available on the Android versions we support, and a latitude range is selective enough for the
+ * number of points kept on a device. Not thread safe; callers must hold the database's write lock when changing it.
+ * <br>
+ * Copyright CloudMine, Inc. All rights reserved<br>
+ * See LICENSE file included with SDK for details.
+ */
+class LocalObjectGeoIndex {
+    private static final Logger LOG = LoggerFactory.getLogger(LocalObjectGeoIndex.class);
+
+    public static final String GEO_TABLE = "CMObjectGeoTable";
+    public static final String OBJECT_ID_COLUMN = "OBJECT_ID";
+    public static final String FIELD_PATH_COLUMN = "FIELD_PATH";
+    public static final String LATITUDE_COLUMN = "LATITUDE";
+    public static final String LONGITUDE_COLUMN = "LONGITUDE";
+
+    private static final double EARTH_RADIUS_KM = 6371.0;
+    private static final double KM_PER_DEGREE_LATITUDE = Math.PI * EARTH_RADIUS_KM / 180.0;
+    private static final String GEOPOINT_TYPE = "geopoint";
+    private static final String[] LATITUDE_KEYS = {"latitude", "lat", "y"};
+    private static final String[] LONGITUDE_KEYS = {"longitude", "lon", "lng", "x"};
+
+    private static final String GEO_TABLE_CREATE = "CREATE TABLE IF NOT EXISTS " + GEO_TABLE +
+            " (" +
+            OBJECT_ID_COLUMN + " text not null, " +
+            FIELD_PATH_COLUMN + " text, " +
+            LATITUDE_COLUMN + " real not null, " +
+            LONGITUDE_COLUMN + " real not null" +
+            ")";
+    private static final String[] INDEXES_CREATE = {
+            "CREATE INDEX IF NOT EXISTS " + GEO_TABLE + "_" + OBJECT_ID_COLUMN + " ON " + GEO_TABLE + " (" + OBJECT_ID_COLUMN + ")",
+            "CREATE INDEX IF NOT EXISTS " + GEO_TABLE + "_" + LATITUDE_COLUMN + " ON " + GEO_TABLE + " (" + LATITUDE_COLUMN + ", " + LONGITUDE_COLUMN + ")"
+    };
+    private static final String INSERT_POINT_SQL = "INSERT INTO " + GEO_TABLE + " (" +
+            OBJECT_ID_COLUMN + ", " + FIELD_PATH_COLUMN + ", " + LATITUDE_COLUMN + ", " + LONGITUDE_COLUMN + ") VALUES (?, ?, ?, ?)";
+    private static final String DELETE_OBJECT_SQL = "DELETE FROM " + GEO_TABLE + " WHERE " + OBJECT_ID_COLUMN + "=?";
+    private static final String SELECT_WITHIN_SQL = "SELECT " + OBJECT_ID_COLUMN + ", " + LATITUDE_COLUMN + ", " + LONGITUDE_COLUMN +
+            " FROM " + GEO_TABLE + " WHERE " + LATITUDE_COLUMN + " BETWEEN ? AND ? AND ";
+    private static final String LONGITUDE_BETWEEN = LONGITUDE_COLUMN + " BETWEEN ? AND ?";
+    //a box that crosses the antimeridian is split in two
+    private static final String LONGITUDE_WRAPPED = "(" + LONGITUDE_COLUMN + ">=? OR " + LONGITUDE_COLUMN + "<=?)";
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    static void createTable(SQLiteDatabase db) {
+        db.execSQL(GEO_TABLE_CREATE);
+        for(String indexCreate : INDEXES_CREATE) {
+            db.execSQL(indexCreate);
+        }
+    }
+
+    /**
+     * Index every object already in the object table; used when the geo table is added to an existing database
+     * @param db
+     * @param objectTable
+     * @param objectIdColumn
+     * @param jsonColumn
+     */
+    static void indexExistingObjects(SQLiteDatabase db, String objectTable, String objectIdColumn, String jsonColumn) {
+        LocalObjectGeoIndex geoIndex = new LocalObjectGeoIndex(db);
+        Cursor cursor = db.query(objectTable, new String[]{objectIdColumn, jsonColumn}, null, null, null, null, null);
+        try {
+            while(cursor.moveToNext()) {
+                geoIndex.index(cursor.getString(0), LocalObjectEncoding.decode(cursor.getString(1)));
+            }
+        } finally {
+            cursor.close();
+            geoIndex.close();
+        }
+    }
+
+    /**
+     * Find the objects with a geopoint within the given distance of a point
+     * @param db
+     * @param latitude
+     * @param longitude
+     * @param radiusKm
+     * @param limit the most object ids to return; if less than 1, all of them are returned
+     * @return the ids of the matching objects, nearest first
+     */
+    static List<String> findNear(SQLiteDatabase db, double latitude, double longitude, double radiusKm, int limit) {
+        double latitudeDelta = radiusKm / KM_PER_DEGREE_LATITUDE;
+        double south = Math.max(-90, latitude - latitudeDelta);
+        double north = Math.min(90, latitude + latitudeDelta);
+        double west = -180;
+        double east = 180;
+        //degrees of longitude shrink towards the poles; past them, every longitude is in range
+        double widestLatitude = Math.max(Math.abs(south), Math.abs(north));
+        if(widestLatitude < 90) {
+            double longitudeDelta = latitudeDelta / Math.cos(Math.toRadians(widestLatitude));
+            if(longitudeDelta < 180) {
+                west = normalizeLongitude(longitude - longitudeDelta);
+                east = normalizeLongitude(longitude + longitudeDelta);
+            }
+        }
+        return find(db, south, west, north, east, latitude, longitude, radiusKm, limit);
+    }
+
+    /**
+     * Find the objects with a geopoint inside the given box
+     * @param db
+     * @param south
+     * @param west
+     * @param north
+     * @param east if less than west, the box crosses the antimeridian
+     * @param limit the most object ids to return; if less than 1, all of them are returned
+     * @return the ids of the matching objects, nearest the center of the box first
+     */
+    static List<String> findWithin(SQLiteDatabase db, double south, double west, double north, double east, int limit) {
+        double centerLatitude = (south + north) / 2;
+        double centerLongitude = west <= east ? (west + east) / 2 : normalizeLongitude((west + east + 360) / 2);
+        return find(db, south, west, north, east, centerLatitude, centerLongitude, Double.MAX_VALUE, limit);
+    }
+
+    private static List<String> find(SQLiteDatabase db, double south, double west, double north, double east,
+                                     double latitude, double longitude, double radiusKm, int limit) {
+        boolean wrapped = west > east;
+        String sql = SELECT_WITHIN_SQL + (wrapped ? LONGITUDE_WRAPPED : LONGITUDE_BETWEEN);
+        String[] args = {String.valueOf(south), String.valueOf(north), String.valueOf(west), String.valueOf(east)};
+        //an object with several points is as near as its nearest one
+        Map<String, Double> objectDistances = new HashMap<String, Double>();
+        Cursor cursor = db.rawQuery(sql, args);
+        try {
+            while(cursor.moveToNext()) {
+                double distance = distanceKm(latitude, longitude, cursor.getDouble(1), cursor.getDouble(2));
+                if(distance > radiusKm) continue;
+                String objectId = cursor.getString(0);
+                Double known = objectDistances.get(objectId);
+                if(known == null || distance < known) objectDistances.put(objectId, distance);
+            }
+        } finally {
+            cursor.close();
+        }
+        List<Map.Entry<String, Double>> sorted = new ArrayList<Map.Entry<String, Double>>(objectDistances.entrySet());
+        Collections.sort(sorted, new Comparator<Map.Entry<String, Double>>() {
+            @Override
+            public int compare(Map.Entry<String, Double> first, Map.Entry<String, Double> second) {
+                return first.getValue().compareTo(second.getValue());
+            }
+        });
+        int size = limit < 1 ? sorted.size() : Math.min(limit, sorted.size());
+        List<String> objectIds = new ArrayList<String>(size);
+        for(int i = 0; i < size; i++) {
+            objectIds.add(sorted.get(i).getKey());
+        }
+        return objectIds;
+    }
+
+    /**
+     * Great circle distance, using the haversine formula
+     */
+    static double distanceKm(double fromLatitude, double fromLongitude, double toLatitude, double toLongitude) {
+        double latitudeDelta = Math.toRadians(toLatitude - fromLatitude);
+        double longitudeDelta = Math.toRadians(toLongitude - fromLongitude);
+        double a = Math.sin(latitudeDelta / 2) * Math.sin(latitudeDelta / 2) +
+                Math.cos(Math.toRadians(fromLatitude)) * Math.cos(Math.toRadians(toLatitude)) *
+                Math.sin(longitudeDelta / 2) * Math.sin(longitudeDelta / 2);
+        return 2 * EARTH_RADIUS_KM * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+    }
+
+    private static double normalizeLongitude(double longitude) {
+        while(longitude > 180) longitude -= 360;
+        while(longitude < -180) longitude += 360;
+        return longitude;
+    }
+
+    private final SQLiteStatement insertPointStatement;
+    private final SQLiteStatement deleteObjectStatement;
+
+    LocalObjectGeoIndex(SQLiteDatabase db) {
+        insertPointStatement = db.compileStatement(INSERT_POINT_SQL);
+        deleteObjectStatement = db.compileStatement(DELETE_OBJECT_SQL);
+    }
+
+    /**
+     * Replace the indexed points of the given object with the geopoints in its JSON
+     * @param objectId
+     * @param transportableJson the object as it is stored, keyed by its id
+     */
+    void index(String objectId, String transportableJson) {
+        remove(objectId);
+        //most objects have no geopoints, so skip parsing them
+        if(transportableJson == null || !transportableJson.contains(GEOPOINT_TYPE)) return;
+        try {
+            JsonParser parser = JSON_FACTORY.createParser(transportableJson);
+            try {
+                //The stored JSON is {"objectId":{...}}; the inner object may itself be a geopoint
+                if(parser.nextToken() != JsonToken.START_OBJECT ||
+                        parser.nextToken() != JsonToken.FIELD_NAME ||
+                        parser.nextToken() != JsonToken.START_OBJECT) return;
+                indexObject(parser, objectId, null);
+            } finally {
+                parser.close();
+            }
+        } catch (IOException e) {
+            //The object is still stored; it just won't be found by location
+            LOG.error("Unable to index geopoints of object " + objectId, e);
+        }
+    }
+
+    /**
+     * Reads the object the parser is at the start of, indexing it if it is a geopoint and any geopoints within it
+     */
+    private void indexObject(JsonParser parser, String objectId, String path) throws IOException {
+        boolean isGeoPoint = false;
+        Double latitude = null;
+        Double longitude = null;
+        while(parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            String childPath = path == null ? name : path + "." + name;
+            if(value == JsonToken.START_OBJECT) {
+                indexObject(parser, objectId, childPath);
+            } else if(value == JsonToken.START_ARRAY) {
+                indexArray(parser, objectId, childPath);
+            } else if(value == JsonToken.VALUE_STRING && "__type__".equals(name)) {
+                isGeoPoint = GEOPOINT_TYPE.equalsIgnoreCase(parser.getText());
+            } else if(value == JsonToken.VALUE_NUMBER_INT || value == JsonToken.VALUE_NUMBER_FLOAT) {
+                if(latitude == null && is(LATITUDE_KEYS, name)) latitude = parser.getDoubleValue();
+                else if(longitude == null && is(LONGITUDE_KEYS, name)) longitude = parser.getDoubleValue();
+            }
+        }
+        if(isGeoPoint && latitude != null && longitude != null) {
+            insertPoint(objectId, path, latitude, longitude);
+        }
+    }
+
+    private void indexArray(JsonParser parser, String objectId, String path) throws IOException {
+        JsonToken token;
+        while((token = parser.nextToken()) != JsonToken.END_ARRAY && token != null) {
+            if(token == JsonToken.START_OBJECT) indexObject(parser, objectId, path);
+            else if(token == JsonToken.START_ARRAY) indexArray(parser, objectId, path);
+        }
+    }
+
+    private static boolean is(String[] possibleKeys, String key) {
+        for(String possibleKey : possibleKeys) {
+            if(possibleKey.equals(key)) return true;
+        }
+        return false;
+    }
+
+    private void insertPoint(String objectId, String path, double latitude, double longitude) {
+        insertPointStatement.clearBindings();
+        insertPointStatement.bindString(1, objectId);
+        if(path != null) insertPointStatement.bindString(2, path);
+        insertPointStatement.bindDouble(3, latitude);
+        insertPointStatement.bindDouble(4, longitude);
+        insertPointStatement.executeInsert();
+    }
+
+    /**
+     * Remove all of the indexed points for the given object
+     * @param objectId
+     */
+    void remove(String objectId) {
+        deleteObjectStatement.bindString(1, objectId);
+        deleteObjectStatement.execute();
+    }
+
+    void close() {
+        insertPointStatement.close();
+        deleteObjectStatement.close();
+    }
+}
@@ -0,0 +1,265 @@
+package com.cloudmine.api.db;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Full text index over the string fields of locally stored objects, for the classes that have text search enabled.
+ * Uses an FTS3 virtual table, which every Android release ships with. Each object gets a stable document id from a
+ * small mapping table, so updating or removing an object's text is a lookup by id rather than a scan of the index.
+ * The classes whose stored objects have all been indexed are recorded in a third table, so that existing objects are
+ * only indexed the first time text search is enabled for their class.
+ * Not thread safe; callers must hold the database's write lock when changing the index.
+ * <br>
+ * Copyright CloudMine, Inc. All rights reserved<br>
+ * See LICENSE file included with SDK for details.
+ */
+class LocalObjectTextIndex {
+    private static final Logger LOG = LoggerFactory.getLogger(LocalObjectTextIndex.class);
+
+    public static final String TEXT_TABLE = "CMObjectTextTable";
+    public static final String DOCUMENT_TABLE = "CMObjectTextDocumentTable";
+    public static final String INDEXED_CLASS_TABLE = "CMObjectTextIndexedClassTable";
+    public static final String DOCUMENT_ID_COLUMN = "DOCUMENT_ID";
+    public static final String OBJECT_ID_COLUMN = "OBJECT_ID";
+    public static final String CONTENT_COLUMN = "CONTENT";
+    public static final String CLASS_NAME_COLUMN = "CLASS_NAME";
+
+    private static final String TEXT_TABLE_CREATE = "CREATE VIRTUAL TABLE " + TEXT_TABLE + " USING fts3(" + CONTENT_COLUMN + ")";
+    private static final String DOCUMENT_TABLE_CREATE = "CREATE TABLE IF NOT EXISTS " + DOCUMENT_TABLE +
+            " (" +
+            DOCUMENT_ID_COLUMN + " integer primary key autoincrement, " +
+            OBJECT_ID_COLUMN + " text not null unique" +
+            ")";
+    private static final String INDEXED_CLASS_TABLE_CREATE = "CREATE TABLE IF NOT EXISTS " + INDEXED_CLASS_TABLE +
+            " (" +
+            CLASS_NAME_COLUMN + " text not null primary key" +
+            ")";
+    private static final String MARK_CLASS_INDEXED_SQL = "INSERT OR IGNORE INTO " + INDEXED_CLASS_TABLE + " (" + CLASS_NAME_COLUMN + ") VALUES (?)";
+    private static final String SELECT_DOCUMENT_ID_SQL = "SELECT " + DOCUMENT_ID_COLUMN + " FROM " + DOCUMENT_TABLE + " WHERE " + OBJECT_ID_COLUMN + "=?";
+    private static final String INSERT_DOCUMENT_SQL = "INSERT INTO " + DOCUMENT_TABLE + " (" + OBJECT_ID_COLUMN + ") VALUES (?)";
+    private static final String DELETE_DOCUMENT_SQL = "DELETE FROM " + DOCUMENT_TABLE + " WHERE " + DOCUMENT_ID_COLUMN + "=?";
+    private static final String INSERT_TEXT_SQL = "INSERT INTO " + TEXT_TABLE + " (docid, " + CONTENT_COLUMN + ") VALUES (?, ?)";
+    private static final String DELETE_TEXT_SQL = "DELETE FROM " + TEXT_TABLE + " WHERE docid=?";
+    //offsets() gives four integers per matching term, which is used to rank results by number of hits
+    private static final String SEARCH_SQL = "SELECT d." + OBJECT_ID_COLUMN + ", offsets(t) FROM " + TEXT_TABLE + " t JOIN " +
+            DOCUMENT_TABLE + " d ON d." + DOCUMENT_ID_COLUMN + " = t.docid WHERE t." + CONTENT_COLUMN + " MATCH ?";
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    /**
+     * Create the index tables. FTS3 is part of every Android release, but a custom SQLite build may leave it out;
+     * if so, text search is unavailable and everything else keeps working
+     * @param db
+     * @return true if the tables exist
+     */
+    static boolean createTables(SQLiteDatabase db) {
+        try {
+            db.execSQL(TEXT_TABLE_CREATE);
+            db.execSQL(DOCUMENT_TABLE_CREATE);
+            createIndexedClassTable(db);
+            return true;
+        } catch (SQLException e) {
+            LOG.error("Unable to create the full text index; local text search is disabled", e);
+            return false;
+        }
+    }
+
+    static void createIndexedClassTable(SQLiteDatabase db) {
+        db.execSQL(INDEXED_CLASS_TABLE_CREATE);
+    }
+
+    static void dropTables(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + TEXT_TABLE);
+        db.execSQL("DROP TABLE IF EXISTS " + DOCUMENT_TABLE);
+        db.execSQL("DROP TABLE IF EXISTS " + INDEXED_CLASS_TABLE);
+    }
+
+    /**
+     * @param db
+     * @param className
+     * @return true if every object of the class that was stored before text search was enabled has been indexed
+     */
+    static boolean isClassIndexed(SQLiteDatabase db, String className) {
+        Cursor cursor = db.query(INDEXED_CLASS_TABLE, new String[]{CLASS_NAME_COLUMN}, CLASS_NAME_COLUMN + "=?",
+                new String[]{className}, null, null, null);
+        try {
+            return cursor.getCount() > 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Record that the objects of the class have been indexed. Must be called while holding the database's write lock
+     * @param db
+     * @param className
+     */
+    static void markClassIndexed(SQLiteDatabase db, String className) {
+        db.execSQL(MARK_CLASS_INDEXED_SQL, new Object[]{className});
+    }
+
+    /**
+     * Search the index
+     * @param db
+     * @param query an FTS3 query, such as: coffee shop, "exact phrase" or caf*
+     * @param limit the most object ids to return; if less than 1, all of them are returned
+     * @return the ids of matching objects, with the most hits first. Empty if the query is not valid FTS3 syntax
+     */
+    static List<String> search(SQLiteDatabase db, String query, int limit) {
+        List<RankedId> ranked = new ArrayList<RankedId>();
+        //a malformed MATCH expression is only reported once the query runs, which may be when the cursor is first moved
+        try {
+            Cursor cursor = db.rawQuery(SEARCH_SQL, new String[]{query});
+            try {
+                while(cursor.moveToNext()) {
+                    ranked.add(new RankedId(cursor.getString(0), countHits(cursor.getString(1))));
+                }
+            } finally {
+                cursor.close();
+            }
+        } catch (SQLiteException e) {
+            LOG.error("Unable to run text search: " + query, e);
+            return new ArrayList<String>();
+        }
+        Collections.sort(ranked, new Comparator<RankedId>() {
+            @Override
+            public int compare(RankedId first, RankedId second) {
+                return second.hits - first.hits;
+            }
+        });
+        int size = limit < 1 ? ranked.size() : Math.min(limit, ranked.size());
+        List<String> objectIds = new ArrayList<String>(size);
+        for(int i = 0; i < size; i++) {
+            objectIds.add(ranked.get(i).objectId);
+        }
+        return objectIds;
+    }
+
+    private static int countHits(String offsets) {
+        if(offsets == null || offsets.length() == 0) return 0;
+        int numbers = 1;
+        for(int i = 0; i < offsets.length(); i++) {
+            if(offsets.charAt(i) == ' ') numbers++;
+        }
+        return numbers / 4;
+    }
+
+    private final SQLiteStatement selectDocumentIdStatement;
+    private final SQLiteStatement insertDocumentStatement;
+    private final SQLiteStatement deleteDocumentStatement;
+    private final SQLiteStatement insertTextStatement;
+    private final SQLiteStatement deleteTextStatement;
+
+    /**
+     * @throws SQLException if the index tables do not exist
+     */
+    LocalObjectTextIndex(SQLiteDatabase db) {
+        selectDocumentIdStatement = db.compileStatement(SELECT_DOCUMENT_ID_SQL);
+        insertDocumentStatement = db.compileStatement(INSERT_DOCUMENT_SQL);
+        deleteDocumentStatement = db.compileStatement(DELETE_DOCUMENT_SQL);
+        insertTextStatement = db.compileStatement(INSERT_TEXT_SQL);
+        deleteTextStatement = db.compileStatement(DELETE_TEXT_SQL);
+    }
+
+    /**
+     * Replace the indexed text of the given object with the string values in its JSON
+     * @param objectId
+     * @param transportableJson the object's JSON, keyed by its id
+     */
+    void index(String objectId, String transportableJson) {
+        String content = extractText(objectId, transportableJson);
+        long documentId = findDocumentId(objectId);
+        if(documentId < 0) {
+            if(content.length() == 0) return;
+            insertDocumentStatement.bindString(1, objectId);
+            documentId = insertDocumentStatement.executeInsert();
+        } else {
+            deleteTextStatement.bindLong(1, documentId);
+            deleteTextStatement.execute();
+        }
+        if(content.length() == 0) return;
+        insertTextStatement.bindLong(1, documentId);
+        insertTextStatement.bindString(2, content);
+        insertTextStatement.executeInsert();
+    }
+
+    /**
+     * Remove the given object from the index, if it is in it
+     * @param objectId
+     */
+    void remove(String objectId) {
+        long documentId = findDocumentId(objectId);
+        if(documentId < 0) return;
+        deleteTextStatement.bindLong(1, documentId);
+        deleteTextStatement.execute();
+        deleteDocumentStatement.bindLong(1, documentId);
+        deleteDocumentStatement.execute();
+    }
+
+    private long findDocumentId(String objectId) {
+        selectDocumentIdStatement.bindString(1, objectId);
+        try {
+            return selectDocumentIdStatement.simpleQueryForLong();
+        } catch (SQLiteDoneException notIndexed) {
+            return -1;
+        }
+    }
+
+    /**
+     * All of the string values in the object, other than CloudMine metadata such as __id__ and __class__, separated
+     * by new lines
+     */
+    private static String extractText(String objectId, String transportableJson) {
+        StringBuilder content = new StringBuilder();
+        if(transportableJson == null) return "";
+        try {
+            JsonParser parser = JSON_FACTORY.createParser(transportableJson);
+            try {
+                String fieldName = null;
+                JsonToken token;
+                //skip the outer {"objectId": wrapper
+                parser.nextToken();
+                parser.nextToken();
+                while((token = parser.nextToken()) != null) {
+                    if(token == JsonToken.FIELD_NAME) {
+                        fieldName = parser.getCurrentName();
+                    } else if(token == JsonToken.VALUE_STRING && (fieldName == null || !fieldName.startsWith("__"))) {
+                        if(content.length() > 0) content.append('\n');
+                        content.append(parser.getText());
+                    }
+                }
+            } finally {
+                parser.close();
+            }
+        } catch (IOException e) {
+            LOG.error("Unable to extract text of object " + objectId, e);
+        }
+        return content.toString();
+    }
+
+    private static class RankedId {
+        private final String objectId;
+        private final int hits;
+
+        RankedId(String objectId, int hits) {
+            this.objectId = objectId;
+            this.hits = hits;
+        }
+    }
+}
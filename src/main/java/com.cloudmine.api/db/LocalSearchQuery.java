@@ -0,0 +1,272 @@
+package com.cloudmine.api.db;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.cloudmine.api.db.LocalObjectFieldIndex.*;
+
+/**
+ * Translates a CloudMine search string, as passed to searchObjects, into a selection on the local object table. Each
+ * condition is answered from the {@link LocalObjectFieldIndex} table, so the stored JSON is never parsed to filter.
+ * Supported: conditions of the form field op value, where op is one of = != &lt; &gt; &lt;= &gt;= or in [...];
+ * values that are strings, numbers, true, false or null; dotted paths into nested objects; and conditions joined
+ * with ',', 'and' or 'or' (and binds tighter than or), optionally grouped with parentheses. A condition on an array
+ * matches if any element matches. __id__ and __class__ are answered from the object table itself. Anything else,
+ * such as geo queries or subobject searches, throws an IllegalArgumentException.
+ * <br>
+ * Copyright CloudMine, Inc. All rights reserved<br>
+ * See LICENSE file included with SDK for details.
+ */
+class LocalSearchQuery {
+
+    private static final String ID_FIELD = "__id__";
+    private static final String CLASS_FIELD = "__class__";
+
+    /**
+     * Parse the given search string
+     * @param searchString such as [__class__="car", wheels > 3]
+     * @return
+     * @throws IllegalArgumentException if the search string is malformed or uses unsupported syntax
+     */
+    static LocalSearchQuery parse(String searchString, String objectIdColumn, String classNameColumn) {
+        if(searchString == null) throw new IllegalArgumentException("Search string cannot be null");
+        LocalSearchQuery query = new LocalSearchQuery(searchString, objectIdColumn, classNameColumn);
+        query.parseQuery();
+        return query;
+    }
+
+    private final String searchString;
+    private final String objectIdColumn;
+    private final String classNameColumn;
+    private final StringBuilder selection = new StringBuilder();
+    private final List<String> selectionArgs = new ArrayList<String>();
+    private int position;
+
+    private LocalSearchQuery(String searchString, String objectIdColumn, String classNameColumn) {
+        this.searchString = searchString;
+        this.objectIdColumn = objectIdColumn;
+        this.classNameColumn = classNameColumn;
+    }
+
+    String getSelection() {
+        return selection.toString();
+    }
+
+    String[] getSelectionArgs() {
+        return selectionArgs.toArray(new String[selectionArgs.size()]);
+    }
+
+    private void parseQuery() {
+        expect('[');
+        skipWhitespace();
+        if(peek() == ']') {
+            selection.append("1");
+        } else {
+            parseOr();
+        }
+        expect(']');
+        skipWhitespace();
+        if(position < searchString.length()) throw error("Unexpected input after search");
+    }
+
+    private void parseOr() {
+        selection.append('(');
+        parseAnd();
+        while(acceptKeyword("or")) {
+            selection.append(" OR ");
+            parseAnd();
+        }
+        selection.append(')');
+    }
+
+    private void parseAnd() {
+        selection.append('(');
+        parseCondition();
+        while(accept(',') || acceptKeyword("and")) {
+            selection.append(" AND ");
+            parseCondition();
+        }
+        selection.append(')');
+    }
+
+    private void parseCondition() {
+        if(accept('(')) {
+            parseOr();
+            expect(')');
+            return;
+        }
+        String path = readPath();
+        if(acceptKeyword("in")) {
+            expect('[');
+            List<Object> values = new ArrayList<Object>();
+            do {
+                values.add(readValue());
+            } while(accept(','));
+            expect(']');
+            appendIn(path, values);
+            return;
+        }
+        String operator = readOperator();
+        appendComparison(path, operator, readValue());
+    }
+
+    private void appendComparison(String path, String operator, Object value) {
+        if(ID_FIELD.equals(path) || CLASS_FIELD.equals(path)) {
+            if(!(value instanceof String)) throw error(path + " can only be compared to a string");
+            selection.append(ID_FIELD.equals(path) ? objectIdColumn : classNameColumn).append(' ').append(operator).append(" ?");
+            selectionArgs.add((String) value);
+            return;
+        }
+        if(value == null) {
+            //null values are not indexed, so = null matches objects that have no value for the field
+            if(!"=".equals(operator) && !"!=".equals(operator)) throw error("null can only be compared with = or !=");
+            selection.append(objectIdColumn).append("=".equals(operator) ? " NOT IN " : " IN ")
+                    .append("(SELECT ").append(OBJECT_ID_COLUMN).append(" FROM ").append(FIELD_TABLE)
+                    .append(" WHERE ").append(FIELD_PATH_COLUMN).append("=?)");
+            selectionArgs.add(path);
+            return;
+        }
+        boolean negate = "!=".equals(operator);
+        selection.append(objectIdColumn).append(negate ? " NOT IN " : " IN ")
+                .append("(SELECT ").append(OBJECT_ID_COLUMN).append(" FROM ").append(FIELD_TABLE)
+                .append(" WHERE ").append(FIELD_PATH_COLUMN).append("=? AND ");
+        selectionArgs.add(path);
+        appendValueMatch(negate ? "=" : operator, value);
+        selection.append(')');
+    }
+
+    private void appendIn(String path, List<Object> values) {
+        if(ID_FIELD.equals(path) || CLASS_FIELD.equals(path)) {
+            selection.append(ID_FIELD.equals(path) ? objectIdColumn : classNameColumn).append(" IN (");
+            String separator = "";
+            for(Object value : values) {
+                if(!(value instanceof String)) throw error(path + " can only be compared to a string");
+                selection.append(separator).append('?');
+                selectionArgs.add((String) value);
+                separator = ", ";
+            }
+            selection.append(')');
+            return;
+        }
+        selection.append(objectIdColumn).append(" IN (SELECT ").append(OBJECT_ID_COLUMN).append(" FROM ").append(FIELD_TABLE)
+                .append(" WHERE ").append(FIELD_PATH_COLUMN).append("=? AND (");
+        selectionArgs.add(path);
+        String separator = "";
+        for(Object value : values) {
+            if(value == null) throw error("null is not supported in an in condition");
+            selection.append(separator);
+            appendValueMatch("=", value);
+            separator = " OR ";
+        }
+        selection.append("))");
+    }
+
+    private void appendValueMatch(String operator, Object value) {
+        selection.append('(').append(VALUE_TYPE_COLUMN).append("='");
+        if(value instanceof String) {
+            selection.append(TYPE_STRING).append("' AND ").append(STRING_VALUE_COLUMN);
+            selectionArgs.add((String) value);
+        } else if(value instanceof Boolean) {
+            if(!"=".equals(operator)) throw error("Booleans can only be compared with = or !=");
+            selection.append(TYPE_BOOLEAN).append("' AND ").append(NUMBER_VALUE_COLUMN);
+            selectionArgs.add(((Boolean) value) ? "1" : "0");
+        } else {
+            selection.append(TYPE_NUMBER).append("' AND ").append(NUMBER_VALUE_COLUMN);
+            selectionArgs.add(value.toString());
+        }
+        selection.append(' ').append(operator).append(" ?)");
+    }
+
+    private String readPath() {
+        skipWhitespace();
+        if(peek() == '"') return readString();
+        int start = position;
+        while(position < searchString.length()) {
+            char c = searchString.charAt(position);
+            if(!(Character.isLetterOrDigit(c) || c == '_' || c == '.' || c == '$' || c == '-')) break;
+            position++;
+        }
+        if(start == position) throw error("Expected a field name");
+        return searchString.substring(start, position);
+    }
+
+    private String readOperator() {
+        skipWhitespace();
+        String[] operators = {"!=", "<=", ">=", "=", "<", ">"};
+        for(String operator : operators) {
+            if(searchString.startsWith(operator, position)) {
+                position += operator.length();
+                return operator;
+            }
+        }
+        throw error("Expected a comparison operator");
+    }
+
+    private Object readValue() {
+        skipWhitespace();
+        char c = peek();
+        if(c == '"') return readString();
+        if(c == '-' || c == '+' || Character.isDigit(c)) {
+            int start = position;
+            position++;
+            while(position < searchString.length()) {
+                char next = searchString.charAt(position);
+                if(!(Character.isDigit(next) || next == '.' || next == 'e' || next == 'E' || next == '-' || next == '+')) break;
+                position++;
+            }
+            try {
+                return Double.valueOf(searchString.substring(start, position));
+            } catch (NumberFormatException e) {
+                throw error("Invalid number");
+            }
+        }
+        if(acceptKeyword("true")) return Boolean.TRUE;
+        if(acceptKeyword("false")) return Boolean.FALSE;
+        if(acceptKeyword("null")) return null;
+        throw error("Expected a value");
+    }
+
+    private String readString() {
+        expect('"');
+        StringBuilder value = new StringBuilder();
+        while(position < searchString.length()) {
+            char c = searchString.charAt(position++);
+            if(c == '"') return value.toString();
+            if(c == '\\' && position < searchString.length()) c = searchString.charAt(position++);
+            value.append(c);
+        }
+        throw error("Unterminated string");
+    }
+
+    private boolean acceptKeyword(String keyword) {
+        skipWhitespace();
+        int end = position + keyword.length();
+        if(!searchString.regionMatches(true, position, keyword, 0, keyword.length())) return false;
+        if(end < searchString.length() && Character.isLetterOrDigit(searchString.charAt(end))) return false;
+        position = end;
+        return true;
+    }
+
+    private boolean accept(char c) {
+        skipWhitespace();
+        if(peek() != c) return false;
+        position++;
+        return true;
+    }
+
+    private void expect(char c) {
+        if(!accept(c)) throw error("Expected '" + c + "'");
+    }
+
+    private char peek() {
+        return position < searchString.length() ? searchString.charAt(position) : 0;
+    }
+
+    private void skipWhitespace() {
+        while(position < searchString.length() && Character.isWhitespace(searchString.charAt(position))) position++;
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at position " + position + " of local search: " + searchString);
+    }
+}
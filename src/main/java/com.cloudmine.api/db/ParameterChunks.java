@@ -0,0 +1,69 @@
+package com.cloudmine.api.db;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Splits values for an IN (...) selection into chunks of bound parameters that fit within SQLite's limit on host
+ * parameters. Chunks are padded, by repeating their last value, up to a power of two (or the limit), so that lookups
+ * of any size use only a handful of distinct SQL strings and the database can reuse their compiled statements.
+ * <br>
+ * Copyright CloudMine, Inc. All rights reserved<br>
+ * See LICENSE file included with SDK for details.
+ */
+class ParameterChunks {
+
+    /** SQLITE_MAX_VARIABLE_NUMBER in the SQLite builds shipped with Android */
+    static final int MAX_VARIABLES = 999;
+
+    /**
+     * Split the given values into chunks of selection arguments
+     * @param values
+     * @param reservedVariables the number of other parameters in the statement, which are added before each chunk
+     * @param reservedArgs the values of those other parameters
+     * @return
+     */
+    static List<String[]> chunk(Collection<String> values, int reservedVariables, String... reservedArgs) {
+        List<String[]> chunks = new ArrayList<String[]>();
+        if(values == null || values.isEmpty()) return chunks;
+        int maxChunkSize = MAX_VARIABLES - reservedVariables;
+        Iterator<String> valueIterator = values.iterator();
+        int remaining = values.size();
+        while(remaining > 0) {
+            int count = Math.min(remaining, maxChunkSize);
+            int paddedCount = paddedSize(count, maxChunkSize);
+            String[] chunk = new String[reservedArgs.length + paddedCount];
+            System.arraycopy(reservedArgs, 0, chunk, 0, reservedArgs.length);
+            String value = null;
+            for(int i = 0; i < paddedCount; i++) {
+                if(i < count) value = valueIterator.next();
+                chunk[reservedArgs.length + i] = value;
+            }
+            chunks.add(chunk);
+            remaining -= count;
+        }
+        return chunks;
+    }
+
+    private static int paddedSize(int count, int maxChunkSize) {
+        int size = 1;
+        while(size < count) size <<= 1;
+        return Math.min(size, maxChunkSize);
+    }
+
+    /**
+     * @param count
+     * @return count comma separated ?s
+     */
+    static String placeholders(int count) {
+        StringBuilder placeholders = new StringBuilder(count * 3);
+        String separator = "";
+        for(int i = 0; i < count; i++) {
+            placeholders.append(separator).append('?');
+            separator = ", ";
+        }
+        return placeholders.toString();
+    }
+}
@@ -6,18 +6,22 @@ import com.cloudmine.api.CMSessionToken;
 import com.cloudmine.api.LibrarySpecificClassCreator;
 import com.cloudmine.api.Strings;
 import com.cloudmine.api.rest.HeaderFactory;
+import com.cloudmine.api.rest.ObjectSaveBatcher;
 import org.apache.http.Header;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.FileEntity;
 import org.apache.http.entity.StringEntity;
 
+import java.io.File;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Set;
+import java.util.TreeSet;
 
 import static com.cloudmine.api.db.RequestDBOpenHelper.*;
 
@@ -32,6 +36,8 @@ import static com.cloudmine.api.db.RequestDBOpenHelper.*;
 public class RequestDBObject {
 
 
+    private static final String BINARY_CONTENT_TYPE = "application/octet-stream";
+
     public static enum Verb {
         GET("get"), PUT("put");
         private final String representation;
@@ -134,10 +140,30 @@ public class RequestDBObject {
         return request;
     }
 
+    /**
+     * Combine object save requests that share a url and headers into one request whose body contains all of their
+     * objects. The requests must all be {@link #isBatchable()} and have the same {@link #getBatchKey()}
+     * @param requests
+     * @return
+     */
+    public static RequestDBObject combineObjectRequests(List<RequestDBObject> requests) {
+        RequestDBObject first = requests.get(0);
+        StringBuilder body = new StringBuilder("{");
+        String separator = "";
+        for(RequestDBObject request : requests) {
+            body.append(separator).append(ObjectSaveBatcher.stripOuterBraces(request.getJsonBody()));
+            separator = ",";
+        }
+        body.append("}");
+        return new RequestDBObject(first.getRequestUrl(), first.getRequestType(), body.toString(), null, null, -1,
+                SyncStatus.UNSYNCED, new ArrayList<Header>(first.getHeaders()));
+    }
+
     private final String requestUrl;
     private final Verb requestType;
     private String jsonBody;
     private byte[] body;
+    private File bodyFile;
     private final String objectId;
     private final String fileId;
     private final int id;
@@ -225,6 +251,40 @@ public class RequestDBObject {
         this.body = body;
     }
 
+    public File getBodyFile() {
+        return bodyFile;
+    }
+
+    /**
+     * Set a file to send as the body of this request. The file is streamed from disk when the request is sent, so
+     * it is never held in memory all at once
+     * @param bodyFile
+     */
+    public void setBodyFile(File bodyFile) {
+        this.bodyFile = bodyFile;
+    }
+
+    /**
+     * Whether this request saves a single object with a known body, and so can be combined with other object saves
+     * @return
+     */
+    public boolean isBatchable() {
+        return requestType == Verb.PUT && Strings.isNotEmpty(objectId) && Strings.isEmpty(fileId) &&
+                Strings.isNotEmpty(jsonBody);
+    }
+
+    /**
+     * Requests with the same batch key go to the same url with the same headers, so their bodies can be combined
+     * @return
+     */
+    public String getBatchKey() {
+        Set<String> headerStrings = new TreeSet<String>();
+        for(Header header : headers) {
+            headerStrings.add(header.getName() + ":" + header.getValue());
+        }
+        return requestType + " " + requestUrl + " " + headerStrings;
+    }
+
     public ContentValues[] toContentValues() {
         int numberOfValues = headers == null ?
                 1 :
@@ -278,7 +338,9 @@ public class RequestDBObject {
                     }
                 } catch (UnsupportedEncodingException e) {
                 }
-                if(body != null && body.length < 0) {
+                if(bodyFile != null) {
+                    ((HttpPut)request).setEntity(new FileEntity(bodyFile, BINARY_CONTENT_TYPE));
+                } else if(body != null && body.length > 0) {
                     ((HttpPut)request).setEntity(new ByteArrayEntity(body));
                 }
         }
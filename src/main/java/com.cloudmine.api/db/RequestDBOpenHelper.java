@@ -2,7 +2,9 @@ package com.cloudmine.api.db;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.Intent;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.util.Log;
@@ -11,12 +13,16 @@ import com.cloudmine.api.Strings;
 import org.apache.http.Header;
 import org.apache.http.message.BasicHeader;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 /**
  * Open Helper for requests that must eventually be synced. Requests can either have their JSON set explicitly, or set
@@ -31,7 +37,9 @@ public class RequestDBOpenHelper extends SQLiteOpenHelper {
     public static final String REQUEST_DATABASE_TABLE = "RequestTable";
     public static final String HEADER_DATABASE_TABLE = "HeaderTable";
 
-    private static final int DATABASE_VERSION = 3;
+    private static final int DATABASE_VERSION = 4;
+    /** The oldest version that can be migrated; anything older is dropped and recreated */
+    private static final int OLDEST_MIGRATABLE_VERSION = 3;
 
     public static final String KEY_REQUEST_ID = "_id";
     public static final String KEY_REQUEST_JSON_BODY = "JSON_BODY_COLUMN";
@@ -106,13 +114,22 @@ public class RequestDBOpenHelper extends SQLiteOpenHelper {
             KEY_REQUEST_OBJECT_ID + " text, " +
             KEY_REQUEST_FILE_ID + " text" +
             ");";
+    //Used to claim the oldest unsynchronized requests, and to find any that are still unsent
+    private static final String REQUEST_SYNCHRONIZED_INDEX_CREATE = "CREATE INDEX IF NOT EXISTS " + REQUEST_DATABASE_TABLE + "_" + KEY_REQUEST_SYNCHRONIZED +
+            " ON " + REQUEST_DATABASE_TABLE + " (" + KEY_REQUEST_SYNCHRONIZED + ", " + KEY_REQUEST_ID + ")";
+    //Headers are joined and looked up by the request they belong to
+    private static final String HEADER_REQUEST_INDEX_CREATE = "CREATE INDEX IF NOT EXISTS " + HEADER_DATABASE_TABLE + "_" + KEY_HEADER_REQUEST_FK +
+            " ON " + HEADER_DATABASE_TABLE + " (" + KEY_HEADER_REQUEST_FK + ")";
     private static final String KEY_WHERE = KEY_REQUEST_ID + "=?";
     private static final String SYNCHRONIZED_VALUE_WHERE = requestColumn(KEY_REQUEST_SYNCHRONIZED) + "=?";
-    private static final String SYNCHRONIZED_VALUE_WITH_IDS_WHERE = requestColumn(KEY_REQUEST_SYNCHRONIZED) + "=? AND " + KEY_REQUEST_ID + " IN (?)";
+    private static final String SYNCHRONIZED_VALUE_UP_TO_ID_WHERE = requestColumn(KEY_REQUEST_SYNCHRONIZED) + "=? AND " + requestColumn(KEY_REQUEST_ID) + "<=?";
+    //Completed with a list of placeholders from ParameterChunks and a closing parenthesis
+    private static final String SYNCHRONIZED_VALUE_WITH_IDS_WHERE_START = KEY_REQUEST_SYNCHRONIZED + "=? AND " + KEY_REQUEST_ID + " IN (";
     private static final String BOTH_DATABASE_TABLE_JOIN = REQUEST_DATABASE_TABLE + " LEFT OUTER JOIN " + HEADER_DATABASE_TABLE + " ON (" +
             REQUEST_DATABASE_TABLE + "." + KEY_REQUEST_ID + "=" + HEADER_DATABASE_TABLE + "." + KEY_HEADER_REQUEST_FK + ")";
 
     public static final long FAILED_REQUEST = -1;
+    private static final int NO_LIMIT = 0;
 
     //TODO issue that we are holding onto the context here? Don't think so because it is the application context
     private static RequestDBOpenHelper requestDBOpenHelper;
@@ -123,8 +140,11 @@ public class RequestDBOpenHelper extends SQLiteOpenHelper {
         return requestDBOpenHelper;
     }
 
+    private final Context context;
+
     public RequestDBOpenHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this.context = context.getApplicationContext();
     }
 
     @Override
@@ -135,12 +155,43 @@ public class RequestDBOpenHelper extends SQLiteOpenHelper {
     private void createDatabase(SQLiteDatabase sqLiteDatabase) {
         sqLiteDatabase.execSQL(REQUEST_DATABASE_CREATE);
         sqLiteDatabase.execSQL(HEADER_DATABASE_CREATE);
+        createIndexes(sqLiteDatabase);
+    }
+
+    private static void createIndexes(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL(REQUEST_SYNCHRONIZED_INDEX_CREATE);
+        sqLiteDatabase.execSQL(HEADER_REQUEST_INDEX_CREATE);
     }
 
+    /**
+     * Migrates the database one version at a time, so requests waiting to be sent are not lost on an upgrade. Only
+     * databases too old to know the layout of are dropped and recreated
+     */
     @Override
-    public void onUpgrade(SQLiteDatabase sqLiteDatabase, int i, int i1) {
-        dropDatabase(sqLiteDatabase);
-        onCreate(sqLiteDatabase);
+    public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
+        if(oldVersion < OLDEST_MIGRATABLE_VERSION) {
+            dropDatabase(sqLiteDatabase);
+            onCreate(sqLiteDatabase);
+            return;
+        }
+        for(int version = oldVersion + 1; version <= newVersion; version++) {
+            upgradeTo(sqLiteDatabase, version);
+        }
+    }
+
+    /**
+     * Apply the changes made in the given version. Add a case here whenever DATABASE_VERSION is bumped
+     * @param sqLiteDatabase
+     * @param version
+     */
+    private static void upgradeTo(SQLiteDatabase sqLiteDatabase, int version) {
+        switch (version) {
+            case 4:
+                createIndexes(sqLiteDatabase);
+                break;
+            default:
+                throw new IllegalStateException("No migration to version " + version + " of " + DATABASE_NAME);
+        }
     }
 
     private void dropDatabase(SQLiteDatabase sqLiteDatabase) {
@@ -149,30 +200,93 @@ public class RequestDBOpenHelper extends SQLiteOpenHelper {
     }
     /**
      * Inserts a request into the database. If the insertion fails, an exception will be thrown. Uses transactions
-     * so only the entire request or none of it will be inserted.
+     * so only the entire request or none of it will be inserted. Once inserted, the {@link RequestPerformerService}
+     * is started so the request is sent as soon as possible.
      * @param request to insert. Do not pass a null request in here
      */
     public void insertRequest(RequestDBObject request) {
         if(request == null) return;
-        insertRequest(request.toRequestContentValues(), request.toHeaderContentValues());
+        insertRequest(request.toRequestContentValues(), request.toHeaderContentValues(), isCoalescable(request));
     }
 
 
     public void insertRequest(ContentValues requestValues, ContentValues[] headerValues) {
+        insertRequest(requestValues, headerValues, false);
+    }
+
+    /**
+     * Insert the request, unless coalesce is true and an identical request is already waiting to be sent
+     */
+    private void insertRequest(ContentValues requestValues, ContentValues[] headerValues, boolean coalesce) {
         SQLiteDatabase db = getWritableDatabase();
         db.beginTransaction();
         try {
-            long requestId = db.insertOrThrow(REQUEST_DATABASE_TABLE, null, requestValues);
-            throwIfFailed(requestId);
-            for(ContentValues headerValue : headerValues) {
-                headerValue.put(KEY_HEADER_REQUEST_FK, requestId);
-                long result = db.insertOrThrow(HEADER_DATABASE_TABLE, null, headerValue);
-                throwIfFailed(result);
+            if(!coalesce || !hasPendingDuplicate(db, requestValues, headerValues)) {
+                long requestId = db.insertOrThrow(REQUEST_DATABASE_TABLE, null, requestValues);
+                throwIfFailed(requestId);
+                for(ContentValues headerValue : headerValues) {
+                    headerValue.put(KEY_HEADER_REQUEST_FK, requestId);
+                    long result = db.insertOrThrow(HEADER_DATABASE_TABLE, null, headerValue);
+                    throwIfFailed(result);
+                }
             }
             db.setTransactionSuccessful();
         }finally {
             db.endTransaction();
         }
+        context.startService(new Intent(context, RequestPerformerService.class));
+    }
+
+    /**
+     * Requests that load their body from the object or file store when they are sent always send the latest version,
+     * so only one of them needs to be queued per object or file
+     */
+    private static boolean isCoalescable(RequestDBObject request) {
+        return Strings.isEmpty(request.getJsonBody()) &&
+                (Strings.isNotEmpty(request.getObjectId()) || Strings.isNotEmpty(request.getFileId()));
+    }
+
+    /**
+     * Check whether an unsent request for the same object or file, with the same url, verb and headers (and so the same
+     * session and credentials) is already queued
+     */
+    private boolean hasPendingDuplicate(SQLiteDatabase db, ContentValues requestValues, ContentValues[] headerValues) {
+        String objectId = requestValues.getAsString(KEY_REQUEST_OBJECT_ID);
+        String fileId = requestValues.getAsString(KEY_REQUEST_FILE_ID);
+        String idColumn = Strings.isNotEmpty(objectId) ? KEY_REQUEST_OBJECT_ID : KEY_REQUEST_FILE_ID;
+        String[] selectionArgs = {UNSYCHRONIZED.toString(), Strings.isNotEmpty(objectId) ? objectId : fileId,
+                requestValues.getAsString(KEY_REQUEST_TARGET_URL), requestValues.getAsString(KEY_REQUEST_VERB)};
+        Cursor candidates = db.query(REQUEST_DATABASE_TABLE, new String[]{KEY_REQUEST_ID},
+                KEY_REQUEST_SYNCHRONIZED + "=? AND " + idColumn + "=? AND " + KEY_REQUEST_TARGET_URL + "=? AND " +
+                        KEY_REQUEST_VERB + "=? AND " + KEY_REQUEST_JSON_BODY + " IS NULL",
+                selectionArgs, null, null, null);
+        try {
+            if(candidates.getCount() == 0) return false;
+            Set<String> newHeaders = new HashSet<String>();
+            for(ContentValues headerValue : headerValues) {
+                newHeaders.add(headerValue.getAsString(KEY_HEADER_NAME) + ":" + headerValue.getAsString(KEY_HEADER_VALUE));
+            }
+            while(candidates.moveToNext()) {
+                if(newHeaders.equals(loadHeaderStrings(db, candidates.getLong(0)))) return true;
+            }
+            return false;
+        } finally {
+            candidates.close();
+        }
+    }
+
+    private static Set<String> loadHeaderStrings(SQLiteDatabase db, long requestId) {
+        Set<String> headers = new HashSet<String>();
+        Cursor cursor = db.query(HEADER_DATABASE_TABLE, new String[]{KEY_HEADER_NAME, KEY_HEADER_VALUE},
+                KEY_HEADER_REQUEST_FK + "=?", new String[]{String.valueOf(requestId)}, null, null, null);
+        try {
+            while(cursor.moveToNext()) {
+                headers.add(cursor.getString(0) + ":" + cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return headers;
     }
 
     private void throwIfFailed(long result) {
@@ -217,24 +331,33 @@ public class RequestDBOpenHelper extends SQLiteOpenHelper {
     }
 
     public void setInProgressToUnsynchronized(Collection<Integer> withIds) {
-        String idCsv = collectionToCsv(withIds);
-        String[] whereArgs = {IN_PROGRESS.toString(), idCsv};
+        if(withIds == null || withIds.isEmpty()) return;
+        List<String> ids = new ArrayList<String>(withIds.size());
+        for(Integer id : withIds) {
+            ids.add(id.toString());
+        }
         ContentValues updateSynchronizedContentValues = getUpdateSynchronizedContentValues(UNSYCHRONIZED);
-        int numUpdated = getWritableDatabase().update(REQUEST_DATABASE_TABLE,
-                updateSynchronizedContentValues,
-                SYNCHRONIZED_VALUE_WITH_IDS_WHERE, whereArgs);
-    }
-
-    private String collectionToCsv(Collection<? extends Object> collection) {
-        if(collection == null || collection.isEmpty())
-            return "";
-        StringBuilder csvBuilder = new StringBuilder();
-        String separator = "";
-        for(Object element : collection) {
-            csvBuilder.append(separator).append(element);
-            separator = ", ";
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for(String[] whereArgs : ParameterChunks.chunk(ids, 1, IN_PROGRESS.toString())) {
+                db.update(REQUEST_DATABASE_TABLE, updateSynchronizedContentValues,
+                        SYNCHRONIZED_VALUE_WITH_IDS_WHERE_START + ParameterChunks.placeholders(whereArgs.length - 1) + ")", whereArgs);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
         }
-        return csvBuilder.toString();
+    }
+
+    /**
+     * Check whether there are any requests waiting to be sent
+     * @return
+     */
+    public boolean hasUnsynchronizedRequests() {
+        String[] unsychronizedSelectionArgs = {UNSYCHRONIZED.toString()};
+        return DatabaseUtils.queryNumEntries(getReadableDatabase(), REQUEST_DATABASE_TABLE,
+                KEY_REQUEST_SYNCHRONIZED + "=?", unsychronizedSelectionArgs) > 0;
     }
 
     /**
@@ -242,8 +365,25 @@ public class RequestDBOpenHelper extends SQLiteOpenHelper {
      * @return
      */
     public LinkedHashMap<Integer, RequestDBObject> retrieveRequestsForSending(Context context) {
-        Cursor requestCursor = loadRequestTableContentsForUpdating();
-        LinkedHashMap<Integer, RequestDBObject> requestMapping = createRequestMapping(requestCursor);
+        return retrieveRequestsForSending(context, NO_LIMIT);
+    }
+
+    /**
+     * Get up to pageSize of the oldest unsynced requests. Only the returned requests have their status set to in
+     * progress; the rest stay unsynced and can be claimed by the next call
+     * @param context
+     * @param pageSize the most requests to claim; if less than 1, every unsynced request is claimed
+     * @return
+     */
+    public LinkedHashMap<Integer, RequestDBObject> retrieveRequestsForSending(Context context, int pageSize) {
+        Cursor requestCursor = loadRequestTableContentsForUpdating(pageSize);
+        LinkedHashMap<Integer, RequestDBObject> requestMapping;
+        try {
+            requestMapping = createRequestMapping(requestCursor);
+        } finally {
+            requestCursor.close();
+        }
+        removeSupersededRequests(requestMapping);
 
         Map<String, RequestDBObject> objectIdsToRequests = new HashMap<String, RequestDBObject>();
         Map<String, RequestDBObject> fileIdsToRequests = new HashMap<String, RequestDBObject>();
@@ -265,16 +405,43 @@ public class RequestDBOpenHelper extends SQLiteOpenHelper {
             }
         }
         if(!fileIdsToRequests.isEmpty()) {
-            Map<String, BaseCacheableCMFile> fileIdToFiles = BaseCacheableCMFile.loadLocalFiles(context, fileIdsToRequests.keySet());
+            //Only the location is stored; the contents are streamed from disk while the request is sent
+            boolean useExternalStorage = BaseCacheableCMFile.shouldUseExternalStorage(context);
             for(Map.Entry<String, RequestDBObject> fileIdAndRequest : fileIdsToRequests.entrySet()) {
-                BaseCacheableCMFile cacheableCMFile = fileIdToFiles.get(fileIdAndRequest.getKey());
-                if(cacheableCMFile != null) fileIdAndRequest.getValue().setBody(cacheableCMFile.getFileContents());
+                File localFile = BaseCacheableCMFile.getLocalFile(context, fileIdAndRequest.getKey(), useExternalStorage);
+                if(localFile != null) fileIdAndRequest.getValue().setBodyFile(localFile);
                 else Log.e("CloudMine", "Had a null file " + fileIdAndRequest.getKey());
             }
         }
         return requestMapping;
     }
 
+    /**
+     * Requests queued before they were coalesced on insert may still contain several rows for the same object or file.
+     * Only the last of those is kept for sending; the earlier ones would send the same body, so they are marked synchronized
+     * @param requestMapping
+     */
+    private void removeSupersededRequests(LinkedHashMap<Integer, RequestDBObject> requestMapping) {
+        Map<String, Integer> lastRequestForTarget = new HashMap<String, Integer>();
+        List<Integer> superseded = new ArrayList<Integer>();
+        for(Map.Entry<Integer, RequestDBObject> entry : requestMapping.entrySet()) {
+            RequestDBObject request = entry.getValue();
+            if(!isCoalescable(request)) continue;
+            Set<String> headers = new HashSet<String>();
+            for(Header header : request.getHeaders()) {
+                headers.add(header.getName() + ":" + header.getValue());
+            }
+            String key = request.getObjectId() + "#" + request.getFileId() + "#" + request.getRequestUrl() + "#" +
+                    request.getRequestType() + "#" + new TreeSet<String>(headers);
+            Integer previous = lastRequestForTarget.put(key, entry.getKey());
+            if(previous != null) superseded.add(previous);
+        }
+        for(Integer id : superseded) {
+            requestMapping.remove(id);
+            setSynchronized(id);
+        }
+    }
+
     public LinkedHashMap<Integer, RequestDBObject> retrieveAllRequests() {
         SQLiteDatabase db = getReadableDatabase();
         Cursor cursor = db.query(BOTH_DATABASE_TABLE_JOIN, RESULTS_COLUMNS, null, null, null, null, requestColumn(KEY_REQUEST_ID));
@@ -321,20 +488,40 @@ public class RequestDBOpenHelper extends SQLiteOpenHelper {
     }
 
     /**
-     * Load all of the unsynced requests, and set their status to in progress.
+     * Load the oldest pageSize unsynced requests, and set their status to in progress. Unsynced rows are claimed in
+     * id order, so every unsynced row with an id up to the last one in the page is part of the page; that bound is
+     * all that is needed to select and claim exactly the page, no matter how many rows are queued behind it.
+     * @param pageSize if less than 1, all of the unsynced requests are loaded
      * @return
      */
-    private Cursor loadRequestTableContentsForUpdating() {
+    private Cursor loadRequestTableContentsForUpdating(int pageSize) {
         SQLiteDatabase db = getWritableDatabase();
         db.beginTransaction();
         try {
             String[] unsychronizedSelectionArgs = {UNSYCHRONIZED.toString()};
+            //Only ids are read here; the last one bounds the page
+            Cursor lastIdCursor = pageSize < 1 ?
+                    db.query(REQUEST_DATABASE_TABLE, new String[]{KEY_REQUEST_ID}, KEY_REQUEST_SYNCHRONIZED + "=?", unsychronizedSelectionArgs,
+                            null, null, KEY_REQUEST_ID + " DESC", "1") :
+                    db.query(REQUEST_DATABASE_TABLE, new String[]{KEY_REQUEST_ID}, KEY_REQUEST_SYNCHRONIZED + "=?", unsychronizedSelectionArgs,
+                            null, null, KEY_REQUEST_ID, String.valueOf(pageSize));
+            String lastId;
+            try {
+                lastId = (pageSize < 1 ? lastIdCursor.moveToFirst() : lastIdCursor.moveToLast()) ?
+                        lastIdCursor.getString(0) :
+                        null;
+            } finally {
+                lastIdCursor.close();
+            }
+            String[] pageSelectionArgs = {UNSYCHRONIZED.toString(), lastId == null ? "-1" : lastId};
             Cursor cursor =
-                    db.query(BOTH_DATABASE_TABLE_JOIN, RESULTS_COLUMNS, SYNCHRONIZED_VALUE_WHERE, unsychronizedSelectionArgs,
+                    db.query(BOTH_DATABASE_TABLE_JOIN, RESULTS_COLUMNS, SYNCHRONIZED_VALUE_UP_TO_ID_WHERE, pageSelectionArgs,
                             null, null, requestColumn(KEY_REQUEST_ID));
             cursor.getCount(); //For some reason, accessing the cursor count before performing the update is required for the load to work. Doesn't make much sense unless it is ignoring order.
-            ContentValues updatedValues = getUpdateSynchronizedContentValues(IN_PROGRESS);
-            db.update(REQUEST_DATABASE_TABLE, updatedValues, SYNCHRONIZED_VALUE_WHERE, unsychronizedSelectionArgs);
+            if(lastId != null) {
+                ContentValues updatedValues = getUpdateSynchronizedContentValues(IN_PROGRESS);
+                db.update(REQUEST_DATABASE_TABLE, updatedValues, KEY_REQUEST_SYNCHRONIZED + "=? AND " + KEY_REQUEST_ID + "<=?", pageSelectionArgs);
+            }
 
             db.setTransactionSuccessful();
 
@@ -1,37 +1,62 @@
 package com.cloudmine.api.db;
 
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
-import android.net.http.AndroidHttpClient;
 import android.os.IBinder;
+import com.cloudmine.api.rest.SharedRequestQueueHolders;
+import com.cloudmine.api.rest.response.ObjectModificationResponse;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.NoHttpResponseException;
 import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.entity.BufferedHttpEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
 import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * Service that has a timer task that runs every minute. The task loads all of the requests with syncstatus = 0,
- * sets their status to 1, and performs all the requests. On a successful request, sets the status to 2; on failure,
- * sets the status back to 0. This is done in a separate thread; if the service is started while an old thread is
- * already running, it waits 5 seconds and retries. If it is still running after 5 seconds, it gives up.
+ * Service that sends the requests that were stored for eventual syncing. Rather than polling, the queue is drained
+ * when something happens that could let a request through: a request is inserted (which starts this service),
+ * connectivity is regained, or a backoff delay after a failure has passed. A drain claims the oldest page of requests
+ * with syncstatus = 0, sets their status to 1, and performs them; pages are drained one after another until the queue
+ * is empty, so only one page is ever held in memory. On a successful request, sets the status
+ * to 2; on failure, sets the status back to 0 and schedules a retry, backing off exponentially while requests keep
+ * failing. Once the queue is empty the service stops itself, so nothing runs while there is no work.
  * To force the service to run, start with the FORCE_RUN_KEY boolean set to true
  *
  * <br>
@@ -41,151 +66,444 @@ import java.util.concurrent.atomic.AtomicBoolean;
 public class RequestPerformerService extends Service {
     private static final Logger LOG = LoggerFactory.getLogger(RequestPerformerService.class);
     public static final String FORCE_RUN_KEY = "forceRun";
-    public static final int MINUTES_BETWEEN_RUNS = 10;
     public static final int CONNECTION_TIMEOUT_SECONDS = 30;
     public static final int SO_TIMEOUT_SECONDS = 30;
+    public static final int DEFAULT_MAX_PARALLEL_REQUESTS = 4;
+    public static final int DEFAULT_MAX_BATCH_BODY_SIZE = 256 * 1024;
+    public static final int DEFAULT_DRAIN_PAGE_SIZE = 100;
+    private static final int MAX_BACKOFF_EXPONENT = 9;
+    private static volatile int maxParallelRequests = DEFAULT_MAX_PARALLEL_REQUESTS;
+    private static volatile int maxBatchBodySize = DEFAULT_MAX_BATCH_BODY_SIZE;
+    private static volatile int drainPageSize = DEFAULT_DRAIN_PAGE_SIZE;
+
+    /**
+     * Set how many queued requests may be sent at the same time. Requests for the same object or file are always
+     * sent one at a time, in the order they were queued. Takes effect the next time the service is created
+     * @param maxParallelRequests
+     */
+    public static void setMaxParallelRequests(int maxParallelRequests) {
+        RequestPerformerService.maxParallelRequests = maxParallelRequests < 1 ? 1 : maxParallelRequests;
+    }
+
+    public static int getMaxParallelRequests() {
+        return maxParallelRequests;
+    }
+
+    /**
+     * Set the largest combined body, in characters of JSON, that queued object saves are batched into
+     * @param maxBatchBodySize
+     */
+    public static void setMaxBatchBodySize(int maxBatchBodySize) {
+        RequestPerformerService.maxBatchBodySize = maxBatchBodySize;
+    }
+
+    public static int getMaxBatchBodySize() {
+        return maxBatchBodySize;
+    }
+
+    /**
+     * Set how many queued requests are claimed from the database and sent per drain. Once a page has been sent, the
+     * next page is claimed right away, so this only bounds how much of the queue is in memory and in progress at once
+     * @param drainPageSize
+     */
+    public static void setDrainPageSize(int drainPageSize) {
+        RequestPerformerService.drainPageSize = drainPageSize < 1 ? 1 : drainPageSize;
+    }
+
+    public static int getDrainPageSize() {
+        return drainPageSize;
+    }
+
     private RequestDBOpenHelper openHelper;
     private ConnectivityManager connectivityManager;
 
-    private Timer timer;
-    private final TimerTask run = new TimerTask() {
-        //this lets us cancel the timer while it is running
-        private AtomicBoolean keepRunning = new AtomicBoolean(true);
-        private Thread requestPerformingThread = null;
-        private int timedOutRequestCount = 0;
-        public void run() {
-            if(isAlreadyRunning()) {
-                try {
-                    Thread.sleep(5 * 1000);
-                } catch (InterruptedException e) {}
-                if(isAlreadyRunning()) {
-                    return;
+    //All drains run on this one thread, so two drains never overlap
+    private ScheduledExecutorService drainExecutor;
+    //Runs the requests of a drain; each task sends every request for one object or file, in order
+    private ExecutorService requestExecutor;
+    //One pooled client for the life of the service, so connections are reused between requests
+    private HttpClient httpClient;
+    private final Object scheduleLock = new Object();
+    private ScheduledFuture<?> scheduledDrain;
+    private boolean isDrainQueued = false;
+    private int failedDrainCount = 0;
+    private volatile int lastStartId;
+    //this lets us stop a drain while it is running
+    private final AtomicBoolean keepRunning = new AtomicBoolean(true);
+
+    private final BroadcastReceiver connectivityReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if(isConnected()) {
+                LOG.debug("Connectivity regained, draining request queue");
+                synchronized (scheduleLock) {
+                    failedDrainCount = 0;
                 }
+                scheduleDrain(0);
+            }
+        }
+    };
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (scheduleLock) {
+                isDrainQueued = false;
+                scheduledDrain = null;
+            }
+            if(!keepRunning.get()) return;
+            if(!isConnected()) {
+                //The connectivity receiver will start us back up
+                LOG.debug("No connection, waiting for connectivity");
+                return;
             }
             LOG.debug("Running!");
-            //Kick this off on its own thread so long running operations don't hog the timer thread
-            requestPerformingThread = new Thread(new Runnable() {
+            long drainStart = System.currentTimeMillis();
+            Map<Integer, RequestDBObject> unsentRequests = null;
+            boolean hadFailure = false;
+            //the executor would swallow an exception thrown from here, and no drain would ever be scheduled again
+            try {
+                unsentRequests = openHelper.retrieveRequestsForSending(getApplicationContext(), drainPageSize);
+                if (unsentRequests != null && !unsentRequests.isEmpty()) {
+                    hadFailure = sendRequests(unsentRequests);
+                    long elapsed = Math.max(1, System.currentTimeMillis() - drainStart);
+                    LOG.debug("Drained " + unsentRequests.size() + " requests in " + elapsed + "ms (" +
+                            (unsentRequests.size() * 1000 / elapsed) + " requests/second)");
+                }
+            } catch (RuntimeException e) {
+                LOG.error("Failed draining request queue", e);
+                hadFailure = true;
+                releaseClaimedRequests(unsentRequests);
+            }
+            try {
+                afterDrain(hadFailure);
+            } catch (RuntimeException e) {
+                //checking for more work failed; retry after a backoff, which doesn't touch the database
+                LOG.error("Failed checking for queued requests", e);
+                afterDrain(true);
+            }
+        }
+    };
 
-                private static final int MAX_TIMEOUT_EXPONENT = 9;
+    /**
+     * Set the requests claimed by a drain that failed back to unsynchronized, so the next drain sends them
+     * @param claimedRequests the requests the drain claimed, or null if it failed while claiming them
+     */
+    private void releaseClaimedRequests(Map<Integer, RequestDBObject> claimedRequests) {
+        try {
+            //drains run one at a time, so if claiming failed any request in progress was claimed by this drain
+            if(claimedRequests == null) openHelper.setInProgressToUnsynchronized();
+            else                        openHelper.setInProgressToUnsynchronized(claimedRequests.keySet());
+        } catch (RuntimeException e) {
+            LOG.error("Unable to release claimed requests; they will be sent once the service restarts", e);
+        }
+    }
 
+    /**
+     * Send the given requests, up to maxParallelRequests at a time. Requests that share an object or file id are
+     * grouped and sent in order by a single task, so a later save can never overtake an earlier one. Once any request
+     * fails in a retriable way, requests that have not started yet are set back to unsynchronized
+     * @param requests
+     * @return true if a request failed and should be retried later
+     */
+    private boolean sendRequests(Map<Integer, RequestDBObject> requests) {
+        final AtomicBoolean hadFailure = new AtomicBoolean(false);
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        Map<Integer, RequestDBObject> unbatchedRequests = new LinkedHashMap<Integer, RequestDBObject>(requests);
+        for(final List<Map.Entry<Integer, RequestDBObject>> batch : removeBatches(unbatchedRequests)) {
+            tasks.add(new Callable<Void>() {
                 @Override
-                public void run() {
-                    NetworkInfo activeNetworkInfo = connectivityManager.getActiveNetworkInfo();
-                    boolean isConnected = activeNetworkInfo != null && activeNetworkInfo.isConnected();
-                    if (isConnected) {
-                        Map<Integer, RequestDBObject> unsentRequests = openHelper.retrieveRequestsForSending(getApplicationContext());
-                        if (unsentRequests == null || unsentRequests.isEmpty()) return;
-                        for (Map.Entry<Integer, RequestDBObject> entries : unsentRequests.entrySet()) {
-                            //Remaining requests will be skipped, set them unsynchronized
-                            if (!keepRunning.get()) {
-                                LOG.debug("Done running, setting remaining entries to unsynchronized: " + entries.getKey());
-                                openHelper.setUnsychronized(entries.getKey());
-                                continue;
-                            }
-                            sendRequest(entries.getKey(), entries.getValue());
+                public Void call() throws Exception {
+                    if(!keepRunning.get() || hadFailure.get()) {
+                        for(Map.Entry<Integer, RequestDBObject> entry : batch) {
+                            openHelper.setUnsychronized(entry.getKey());
                         }
+                    } else if(!sendBatch(batch)) {
+                        hadFailure.set(true);
                     }
+                    return null;
                 }
-
-                /**
-                 * Perform the request, and then set its sync status to either 0 if unsuccessful but retriable, 3
-                 * if unsuccessful and not retriable, or 2 if successful
-                 * @param id
-                 * @param next
-                 */
-                private void sendRequest(final Integer id, RequestDBObject next) {
-                    AndroidHttpClient androidClient = null;
-                    HttpResponse response = null;
-                    Throwable thrown = null;
-                    try {
-                        androidClient = createClient();
-                        LOG.debug("Running request " + next);
-                        HttpUriRequest request = next.toHttpRequest();
-                        response = androidClient.execute(request);
-                    } catch (ClientProtocolException e) {
-                        thrown = e;
-                        LOG.error("Protocol exception executing request " + next, e);
-                    } catch (IOException e) {
-                        thrown = e;
-                        LOG.error("IO exception executing request " + next, e);
-                    } catch(Throwable t) {
-                        thrown = t;
-                        LOG.error("Unknown exception occurred", t);
-                    } finally {
-                        if(androidClient != null)
-                            androidClient.close();
-
-                        int statusCode = getStatusCode(response);
-                        if(wasSuccess(statusCode)) {
-                            LOG.debug("Successfully performed request " + id);
-                            openHelper.setSynchronized(id);
-                        } else {
-                            if(wasUnRetriable(statusCode)){
-                                LOG.debug("Permanently failed request " + id);
-                                openHelper.setPermanentlyFailed(id);
-                            } else {
-                                LOG.debug("Failed performing request " + id);
-                                openHelper.setUnsychronized(id);
-                            }
-
+            });
+        }
+        for(final List<Map.Entry<Integer, RequestDBObject>> group : groupByTarget(unbatchedRequests).values()) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for(Map.Entry<Integer, RequestDBObject> entry : group) {
+                        //Remaining requests will be skipped, set them unsynchronized
+                        if(!keepRunning.get() || hadFailure.get()) {
+                            LOG.debug("Stopping drain, setting remaining entries to unsynchronized: " + entry.getKey());
+                            openHelper.setUnsychronized(entry.getKey());
+                            continue;
                         }
-                        sleepIfTimedOut(response, thrown);
+                        if(!sendRequest(entry.getKey(), entry.getValue())) hadFailure.set(true);
                     }
+                    return null;
                 }
+            });
+        }
+        try {
+            requestExecutor.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            LOG.error("Interrupted while sending requests", e);
+            hadFailure.set(true);
+        }
+        return hadFailure.get();
+    }
 
-                private String getResponseBody(HttpResponse serverResponse) {
-                    String responseBody = "";
-                    HttpEntity entity = null;
-                    HttpEntity temp = serverResponse.getEntity();
-                    if (temp != null) {
-                        try {
-                            entity = new BufferedHttpEntity(temp);
-                            responseBody = EntityUtils.toString(entity, "UTF-8");
-                        } catch (IOException e) {
-                            LOG.error("Couldn't read message body", e);
-                        }
-                    }
-                    return responseBody;
-                }
+    /**
+     * Take the object saves that can be combined out of the given requests and group them into batches. Saves are
+     * batched together when they go to the same url with the same headers (so the same credentials and session),
+     * up to maxBatchBodySize characters of JSON per batch. An object that is the target of more than one request is
+     * left unbatched so its requests still go out in order
+     * @param requests the requests to send; batched requests are removed
+     * @return
+     */
+    static List<List<Map.Entry<Integer, RequestDBObject>>> removeBatches(Map<Integer, RequestDBObject> requests) {
+        Map<String, Integer> objectIdCounts = new HashMap<String, Integer>();
+        for(RequestDBObject request : requests.values()) {
+            String objectId = request.getObjectId();
+            if(objectId == null) continue;
+            Integer count = objectIdCounts.get(objectId);
+            objectIdCounts.put(objectId, count == null ? 1 : count + 1);
+        }
 
-                /**
-                 * When a request times out, wait an increasing amount of time before trying again. Will
-                 * increase exponentially till it reaches 512 seconds, then will remain there. Resets once
-                 * requests stop timing out.
-                 * @param response
-                 * @param thrown
-                 */
-                private void sleepIfTimedOut(HttpResponse response, Throwable thrown) {
-                    if(wasTimedOut(response, thrown)) {
-                        timedOutRequestCount++;
-                        int exponent = timedOutRequestCount < MAX_TIMEOUT_EXPONENT ?
-                                timedOutRequestCount :
-                                MAX_TIMEOUT_EXPONENT;
-                        int waitTimeSeconds = (int) ((int)Math.pow(2, exponent) + Math.random()*10);
-                        LOG.debug("Timed out, sleeping for " + waitTimeSeconds + " seconds");
-                        try {
-                            Thread.sleep(waitTimeSeconds * 1000);
-                        } catch (InterruptedException e) {}
-                    }else {
-                        timedOutRequestCount = 0;
-                    }
+        Map<String, List<Map.Entry<Integer, RequestDBObject>>> batchesByTarget = new LinkedHashMap<String, List<Map.Entry<Integer, RequestDBObject>>>();
+        List<List<Map.Entry<Integer, RequestDBObject>>> batches = new ArrayList<List<Map.Entry<Integer, RequestDBObject>>>();
+        Map<String, Integer> batchSizes = new HashMap<String, Integer>();
+        int maxBodySize = maxBatchBodySize;
+        for(Map.Entry<Integer, RequestDBObject> entry : requests.entrySet()) {
+            RequestDBObject request = entry.getValue();
+            if(!request.isBatchable() || objectIdCounts.get(request.getObjectId()) != 1) continue;
+
+            String target = request.getBatchKey();
+            List<Map.Entry<Integer, RequestDBObject>> batch = batchesByTarget.get(target);
+            int bodySize = request.getJsonBody().length();
+            if(batch == null || batchSizes.get(target) + bodySize > maxBodySize) {
+                batch = new ArrayList<Map.Entry<Integer, RequestDBObject>>();
+                batchesByTarget.put(target, batch);
+                batches.add(batch);
+                batchSizes.put(target, 0);
+            }
+            batch.add(entry);
+            batchSizes.put(target, batchSizes.get(target) + bodySize);
+        }
+        for(List<Map.Entry<Integer, RequestDBObject>> batch : batches) {
+            for(Map.Entry<Integer, RequestDBObject> entry : batch) {
+                requests.remove(entry.getKey());
+            }
+        }
+        return batches;
+    }
+
+    /**
+     * Send all of the object saves in the batch as one request, then mark each one synchronized or permanently failed
+     * depending on whether the server reported that object as modified. If the server rejects the batch as a whole,
+     * the requests are sent one at a time so a single bad object doesn't fail the others
+     * @param batch
+     * @return false if the batch failed in a way that should be retried later
+     */
+    boolean sendBatch(List<Map.Entry<Integer, RequestDBObject>> batch) {
+        if(batch.size() == 1) {
+            Map.Entry<Integer, RequestDBObject> only = batch.get(0);
+            return sendRequest(only.getKey(), only.getValue());
+        }
+        List<RequestDBObject> batchedRequests = new ArrayList<RequestDBObject>();
+        for(Map.Entry<Integer, RequestDBObject> entry : batch) {
+            batchedRequests.add(entry.getValue());
+        }
+        RequestDBObject combined = RequestDBObject.combineObjectRequests(batchedRequests);
+
+        HttpResponse response = null;
+        Throwable thrown = null;
+        String responseBody = "";
+        try {
+            LOG.debug("Running batch of " + batch.size() + " object requests");
+            response = httpClient.execute(combined.toHttpRequest());
+            responseBody = getResponseBody(response);
+        } catch (Throwable t) {
+            thrown = t;
+            LOG.error("Exception executing batched request", t);
+        } finally {
+            consumeQuietly(response);
+        }
+        int statusCode = getStatusCode(response);
+        if(wasSuccess(statusCode)) {
+            ObjectModificationResponse modificationResponse = new ObjectModificationResponse(responseBody, statusCode);
+            for(Map.Entry<Integer, RequestDBObject> entry : batch) {
+                if(modificationResponse.wasModified(entry.getValue().getObjectId())) {
+                    openHelper.setSynchronized(entry.getKey());
+                } else {
+                    LOG.debug("Server did not accept object in batch, permanently failed request " + entry.getKey());
+                    openHelper.setPermanentlyFailed(entry.getKey());
                 }
-            });
-            requestPerformingThread.start();
+            }
+            expireCachedLoads(responseBody);
+            return true;
+        } else if(wasUnRetriable(statusCode)) {
+            LOG.debug("Batch was rejected, sending its requests individually");
+            boolean allSent = true;
+            for(Map.Entry<Integer, RequestDBObject> entry : batch) {
+                if(!allSent) {
+                    openHelper.setUnsychronized(entry.getKey());
+                    continue;
+                }
+                allSent = sendRequest(entry.getKey(), entry.getValue());
+            }
+            return allSent;
+        } else {
+            LOG.debug("Failed performing batch" + (wasTimedOut(response, thrown) ? ", timed out" : ""));
+            for(Map.Entry<Integer, RequestDBObject> entry : batch) {
+                openHelper.setUnsychronized(entry.getKey());
+            }
+            return false;
         }
+    }
 
-        private boolean isAlreadyRunning() {
-            return requestPerformingThread != null && requestPerformingThread.isAlive();
+    /**
+     * Group the requests by the object or file they send, keeping the original order within each group. Requests
+     * that do not refer to an object or file get a group of their own
+     */
+    private static Map<String, List<Map.Entry<Integer, RequestDBObject>>> groupByTarget(Map<Integer, RequestDBObject> requests) {
+        Map<String, List<Map.Entry<Integer, RequestDBObject>>> groups = new LinkedHashMap<String, List<Map.Entry<Integer, RequestDBObject>>>();
+        for(Map.Entry<Integer, RequestDBObject> entry : requests.entrySet()) {
+            RequestDBObject request = entry.getValue();
+            String key;
+            if(request.getObjectId() != null)    key = "object:" + request.getObjectId();
+            else if(request.getFileId() != null) key = "file:" + request.getFileId();
+            else                                 key = "request:" + entry.getKey();
+            List<Map.Entry<Integer, RequestDBObject>> group = groups.get(key);
+            if(group == null) {
+                group = new ArrayList<Map.Entry<Integer, RequestDBObject>>();
+                groups.put(key, group);
+            }
+            group.add(entry);
         }
+        return groups;
+    }
 
-        @Override
-        public boolean cancel() {
-            boolean wasCancelled = super.cancel();
-            LOG.debug("Cancelling RequestPerformerService...");
-            keepRunning.set(false);
-            return wasCancelled;
+    /**
+     * Decide what to do once a drain has finished: back off and retry if something failed, drain again if more
+     * requests were queued while we were running, otherwise stop the service
+     * @param hadFailure
+     */
+    private void afterDrain(boolean hadFailure) {
+        if(!keepRunning.get()) return;
+        if(hadFailure) {
+            int exponent;
+            synchronized (scheduleLock) {
+                failedDrainCount++;
+                exponent = failedDrainCount < MAX_BACKOFF_EXPONENT ?
+                        failedDrainCount :
+                        MAX_BACKOFF_EXPONENT;
+            }
+            long waitTimeMs = (long) ((Math.pow(2, exponent) + Math.random() * 10) * 1000);
+            LOG.debug("Request failed, retrying in " + waitTimeMs + "ms");
+            scheduleDrain(waitTimeMs);
+        } else {
+            synchronized (scheduleLock) {
+                failedDrainCount = 0;
+            }
+            if(openHelper.hasUnsynchronizedRequests()) {
+                scheduleDrain(0);
+            } else {
+                LOG.debug("Request queue is empty, stopping");
+                stopSelfResult(lastStartId);
+            }
         }
-    };
+    }
+
+    /**
+     * Schedule a drain of the request queue after the given delay. A sooner drain replaces a later one that is
+     * already scheduled; if a drain is already waiting to run, nothing new is scheduled
+     * @param delayMs
+     */
+    private void scheduleDrain(long delayMs) {
+        synchronized (scheduleLock) {
+            if(drainExecutor == null || drainExecutor.isShutdown()) return;
+            if(isDrainQueued) {
+                if(scheduledDrain == null || scheduledDrain.getDelay(TimeUnit.MILLISECONDS) <= delayMs) return;
+                scheduledDrain.cancel(false);
+            }
+            isDrainQueued = true;
+            scheduledDrain = drainExecutor.schedule(drain, delayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Perform the request, and then set its sync status to either 0 if unsuccessful but retriable, 3
+     * if unsuccessful and not retriable, or 2 if successful
+     * @param id
+     * @param next
+     * @return false if the request failed in a way that should be retried later
+     */
+    private boolean sendRequest(final Integer id, RequestDBObject next) {
+        HttpResponse response = null;
+        Throwable thrown = null;
+        String responseBody = null;
+        try {
+            LOG.debug("Running request " + next);
+            HttpUriRequest request = next.toHttpRequest();
+            response = httpClient.execute(request);
+            //only object saves affect cached loads
+            if(next.getObjectId() != null && wasSuccess(getStatusCode(response))) responseBody = getResponseBody(response);
+        } catch (ClientProtocolException e) {
+            thrown = e;
+            LOG.error("Protocol exception executing request " + next, e);
+        } catch (IOException e) {
+            thrown = e;
+            LOG.error("IO exception executing request " + next, e);
+        } catch(Throwable t) {
+            thrown = t;
+            LOG.error("Unknown exception occurred", t);
+        } finally {
+            consumeQuietly(response);
+        }
+        int statusCode = getStatusCode(response);
+        if(wasSuccess(statusCode)) {
+            LOG.debug("Successfully performed request " + id);
+            openHelper.setSynchronized(id);
+            expireCachedLoads(responseBody);
+            return true;
+        } else if(wasUnRetriable(statusCode)){
+            LOG.debug("Permanently failed request " + id);
+            openHelper.setPermanentlyFailed(id);
+            return true;
+        } else {
+            LOG.debug("Failed performing request " + id + (wasTimedOut(response, thrown) ? ", timed out" : ""));
+            openHelper.setUnsychronized(id);
+            return false;
+        }
+    }
+
+    /**
+     * Expire the cached loads of the shared request queue that a successful save made out of date, as happens for
+     * saves sent through the queue
+     * @param modificationResponse the response body, or null if there is nothing to expire
+     */
+    private void expireCachedLoads(String modificationResponse) {
+        if(modificationResponse == null) return;
+        try {
+            SharedRequestQueueHolders.objectsChanged(getApplicationContext(), modificationResponse);
+        } catch (RuntimeException e) {
+            LOG.error("Unable to expire cached loads", e);
+        }
+    }
+
+    private String getResponseBody(HttpResponse serverResponse) {
+        String responseBody = "";
+        HttpEntity entity = null;
+        HttpEntity temp = serverResponse.getEntity();
+        if (temp != null) {
+            try {
+                entity = new BufferedHttpEntity(temp);
+                responseBody = EntityUtils.toString(entity, "UTF-8");
+            } catch (IOException e) {
+                LOG.error("Couldn't read message body", e);
+            }
+        }
+        return responseBody;
+    }
 
     private static boolean wasTimedOut(HttpResponse response, Throwable thrown) {
         if(thrown != null) {
@@ -203,12 +521,42 @@ public class RequestPerformerService extends Service {
         return false;
     }
 
-    private AndroidHttpClient createClient() {
-        AndroidHttpClient client = AndroidHttpClient.newInstance("CloudMine", this);
-        HttpParams params = client.getParams();
+    private boolean isConnected() {
+        NetworkInfo activeNetworkInfo = connectivityManager.getActiveNetworkInfo();
+        return activeNetworkInfo != null && activeNetworkInfo.isConnected();
+    }
+
+    /**
+     * Create a client whose connection pool allows one connection per parallel request, so connections (and their
+     * TLS sessions) are kept alive and reused across the whole drain
+     * @param parallelRequests
+     * @return
+     */
+    private static HttpClient createClient(int parallelRequests) {
+        HttpParams params = new BasicHttpParams();
         HttpConnectionParams.setConnectionTimeout(params, CONNECTION_TIMEOUT_SECONDS * 1000);
         HttpConnectionParams.setSoTimeout(params, SO_TIMEOUT_SECONDS * 1000);
-        return client;
+        HttpConnectionParams.setSocketBufferSize(params, 8192);
+        HttpProtocolParams.setUserAgent(params, "CloudMine");
+        ConnManagerParams.setMaxTotalConnections(params, parallelRequests);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(parallelRequests));
+
+        SchemeRegistry schemeRegistry = new SchemeRegistry();
+        schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+        return new DefaultHttpClient(new ThreadSafeClientConnManager(params, schemeRegistry), params);
+    }
+
+    /**
+     * The connection only goes back to the pool once its response has been read
+     */
+    private static void consumeQuietly(HttpResponse response) {
+        if(response == null || response.getEntity() == null) return;
+        try {
+            response.getEntity().consumeContent();
+        } catch (IOException e) {
+            LOG.debug("Couldn't consume response", e);
+        }
     }
 
     private boolean wasSuccess(int statusCode) {
@@ -242,10 +590,15 @@ public class RequestPerformerService extends Service {
     public int onStartCommand(Intent intent, int flags, int startId) {
         super.onStartCommand(intent, flags, startId);
         LOG.debug("onStartCommand");
-        boolean forceRun = intent.getBooleanExtra(FORCE_RUN_KEY, false);
+        lastStartId = startId;
+        boolean forceRun = intent != null && intent.getBooleanExtra(FORCE_RUN_KEY, false);
         if(forceRun) {
-            forceRun();
+            synchronized (scheduleLock) {
+                failedDrainCount = 0;
+            }
         }
+        //Every start means there may be new work, so drain now rather than waiting on a backoff
+        scheduleDrain(0);
         return START_STICKY;
     }
 
@@ -258,17 +611,16 @@ public class RequestPerformerService extends Service {
         LOG.debug("onCreate");
 
         connectivityManager = (ConnectivityManager) getApplicationContext().getSystemService(CONNECTIVITY_SERVICE);
-        openHelper = new RequestDBOpenHelper(getApplicationContext());
+        openHelper = RequestDBOpenHelper.getRequestDBOpenHelper(getApplicationContext());
         //If this is getting created, any requests that were in progress are not currently running, so set them back
         //to unsynchronized
 
         openHelper.setInProgressToUnsynchronized();
-        timer = new Timer();
-        timer.schedule(run, 0, MINUTES_BETWEEN_RUNS * 60 * 1000);
-    }
-
-    private void forceRun() {
-        new Thread(run).start();
+        drainExecutor = Executors.newSingleThreadScheduledExecutor();
+        int parallelRequests = maxParallelRequests;
+        requestExecutor = Executors.newFixedThreadPool(parallelRequests);
+        httpClient = createClient(parallelRequests);
+        registerReceiver(connectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
     }
 
     /**
@@ -293,6 +645,13 @@ public class RequestPerformerService extends Service {
     public void onDestroy() {
         super.onDestroy();
         LOG.debug("onDestroy");
-        timer.cancel();
+        LOG.debug("Cancelling RequestPerformerService...");
+        keepRunning.set(false);
+        unregisterReceiver(connectivityReceiver);
+        synchronized (scheduleLock) {
+            drainExecutor.shutdown();
+        }
+        requestExecutor.shutdown();
+        httpClient.getConnectionManager().shutdown();
     }
 }
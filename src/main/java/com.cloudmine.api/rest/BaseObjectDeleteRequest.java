@@ -22,6 +22,8 @@ public class BaseObjectDeleteRequest extends CloudMineRequest<ObjectModification
     public static final int REQUEST_TYPE = 408;
     private static final CMURLBuilder BASE_URL = new CMURLBuilder("/data", true);
 
+    private boolean deletesAllObjects;
+
     /**
      * Delete all of the objects with the given ids
      * @param objectIds the ids of the objects to delete
@@ -51,10 +53,15 @@ public class BaseObjectDeleteRequest extends CloudMineRequest<ObjectModification
         super(Method.DELETE,
                 deleteAll ? BASE_URL.copy().deleteAll().user(sessionToken).serverFunction(serverFunction).asUrlString() : BASE_URL.copy().user(sessionToken).serverFunction(serverFunction).asUrlString(),
                 null, sessionToken, apiCredentials, responseListener, errorListener);
+        deletesAllObjects = deleteAll;
     }
 
     @Override
     protected Response<ObjectModificationResponse> parseNetworkResponse(NetworkResponse networkResponse) {
+        if(isSuccess(networkResponse)) {
+            if(deletesAllObjects) CachedObjectIndex.allObjectsChanged(getResponseCache());
+            else                  CachedObjectIndex.objectsChanged(getResponseCache(), networkResponse.data);
+        }
         return Response.success(new ObjectModificationResponse(new String(networkResponse.data), networkResponse.statusCode), getCacheEntry());
     }
 
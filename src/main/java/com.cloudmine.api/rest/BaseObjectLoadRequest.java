@@ -1,6 +1,9 @@
 package com.cloudmine.api.rest;
 
+import com.android.volley.Cache;
 import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
 import com.android.volley.Response;
 import com.cloudmine.api.CMApiCredentials;
 import com.cloudmine.api.CMSessionToken;
@@ -10,10 +13,12 @@ import me.cloudmine.annotations.Expand;
 import me.cloudmine.annotations.Optional;
 import me.cloudmine.annotations.Single;
 
+import java.util.ArrayList;
 import java.util.Collection;
 
 /**
- * A Request for loading CloudMine objects
+ * A Request for loading CloudMine objects. Responses served from the cache are parsed again for every request, so
+ * each listener gets its own CMObjectResponse that it is free to modify
  * <br>
  * Copyright CloudMine, Inc. All rights reserved<br>
  * See LICENSE file included with SDK for details.
@@ -24,6 +29,10 @@ public class BaseObjectLoadRequest extends CloudMineRequest<CMObjectResponse> {
     static final String BASE_ENDPOINT = "/text";
     static final CMURLBuilder BASE_URL = new CMURLBuilder(BASE_ENDPOINT, true);
 
+    //loads of specific ids are only affected by changes to those objects, null for any other load; see CachedObjectIndex
+    private Collection<String> loadedObjectIds;
+    //the write generation when this was added to a queue; responses are not cached if a relevant write happened since
+    private volatile long loadGeneration;
 
     public BaseObjectLoadRequest(@Single @Optional Collection<String> objectIds, @Optional CMSessionToken sessionToken, @Optional CMServerFunction serverFunction, Response.Listener<CMObjectResponse> successListener, @Optional Response.ErrorListener errorListener) {
         this(objectIds, sessionToken, CMApiCredentials.getCredentials(), serverFunction, successListener, errorListener);
@@ -40,15 +49,42 @@ public class BaseObjectLoadRequest extends CloudMineRequest<CMObjectResponse> {
     @Expand
     public BaseObjectLoadRequest(@Single @Optional Collection<String> objectIds, @Optional CMSessionToken sessionToken, @Optional CMApiCredentials apiCredentials, @Optional CMServerFunction serverFunction, Response.Listener<CMObjectResponse> successListener, @Optional Response.ErrorListener errorListener) {
         this(BASE_URL.copy().objectIds(objectIds), sessionToken, apiCredentials, serverFunction, successListener, errorListener);
+        if(objectIds != null && !objectIds.isEmpty()) loadedObjectIds = new ArrayList<String>(objectIds);
     }
 
     BaseObjectLoadRequest(CMURLBuilder url, CMSessionToken sessionToken, CMApiCredentials apiCredentials, CMServerFunction serverFunction, Response.Listener<CMObjectResponse> successListener, Response.ErrorListener errorListener) {
         super(Method.GET, url.user(sessionToken).serverFunction(serverFunction).asUrlString(), null, sessionToken, apiCredentials,successListener, errorListener);
     }
 
+    @Override
+    public Request<?> setRequestQueue(RequestQueue requestQueue) {
+        loadGeneration = CachedObjectIndex.generation();
+        return super.setRequestQueue(requestQueue);
+    }
+
     @Override
     protected Response<CMObjectResponse> parseNetworkResponse(NetworkResponse networkResponse) {
-        return Response.success(new CMObjectResponse(new String(networkResponse.data), networkResponse.statusCode), getCacheEntry(networkResponse));
+        Cache.Entry cacheEntry = getCacheEntry(networkResponse);
+        if(cacheEntry != null && shouldCache() && isSuccess(networkResponse)) {
+            if(CachedObjectIndex.isChangedSince(loadGeneration, loadedObjectIds)) {
+                //the response may have been read before the write, which already expired what was cached
+                cacheEntry = null;
+            } else {
+                CachedObjectIndex.recordLoad(getResponseCache(), getCacheKey(), networkResponse.data, loadedObjectIds != null);
+            }
+        }
+        return Response.success(new CMObjectResponse(new String(networkResponse.data), networkResponse.statusCode), cacheEntry);
+    }
+
+    @Override
+    public void markDelivered() {
+        super.markDelivered();
+        //NetworkDispatcher caches the response just before this. A write that succeeded between parsing and caching
+        //expired the key too early, so expire it again
+        Cache cache = getResponseCache();
+        if(cache != null && shouldCache() && CachedObjectIndex.isChangedSince(loadGeneration, loadedObjectIds)) {
+            cache.invalidate(getCacheKey(), true);
+        }
     }
 
     @Override
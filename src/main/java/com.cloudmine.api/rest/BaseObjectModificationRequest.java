@@ -59,6 +59,7 @@ public class BaseObjectModificationRequest extends CloudMineRequest<ObjectModifi
 
     @Override
     protected Response<ObjectModificationResponse> parseNetworkResponse(NetworkResponse networkResponse) {
+        if(isSuccess(networkResponse)) CachedObjectIndex.objectsChanged(getResponseCache(), networkResponse.data);
         return Response.success(new ObjectModificationResponse(new String(networkResponse.data), networkResponse.statusCode), getCacheEntry());
     }
 
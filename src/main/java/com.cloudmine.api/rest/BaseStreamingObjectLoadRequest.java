@@ -0,0 +1,144 @@
+package com.cloudmine.api.rest;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.Response;
+import com.cloudmine.api.CMApiCredentials;
+import com.cloudmine.api.CMObject;
+import com.cloudmine.api.CMSessionToken;
+import com.cloudmine.api.rest.options.CMServerFunction;
+import com.cloudmine.api.rest.response.StreamedCMObjectResponse;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import me.cloudmine.annotations.Expand;
+import me.cloudmine.annotations.Optional;
+import me.cloudmine.annotations.Single;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A Request for loading CloudMine objects that parses the response as it is read from the network. Each object
+ * is built as soon as its JSON has been read, so the full response body is never held in memory as bytes or as a
+ * String. Use this instead of {@link BaseObjectLoadRequest} for loads that may return a large amount of data.
+ * Responses to this request are not cached.
+ * <br>
+ * Copyright CloudMine, Inc. All rights reserved<br>
+ * See LICENSE file included with SDK for details.
+ */
+public class BaseStreamingObjectLoadRequest extends CloudMineRequest<StreamedCMObjectResponse> implements StreamingRequest {
+
+    public static final int REQUEST_TYPE = 429;
+    private static final String SUCCESS = "success";
+    private static final String ERRORS = "errors";
+    private static final String COUNT = "count";
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private volatile StreamedCMObjectResponse parsedResponse;
+
+    public BaseStreamingObjectLoadRequest(@Single @Optional Collection<String> objectIds, @Optional CMSessionToken sessionToken, @Optional CMServerFunction serverFunction, Response.Listener<StreamedCMObjectResponse> successListener, @Optional Response.ErrorListener errorListener) {
+        this(objectIds, sessionToken, CMApiCredentials.getCredentials(), serverFunction, successListener, errorListener);
+    }
+
+    /**
+     * Create a new BaseStreamingObjectLoadRequest that loads the objects specified by the ids
+     * @param objectIds The objectIds to load. If null, all objects will be loaded
+     * @param sessionToken an optional sessionToken. If present, the objects will be loaded at the user level
+     * @param apiCredentials
+     * @param serverFunction
+     * @param successListener
+     * @param errorListener
+     */
+    @Expand
+    public BaseStreamingObjectLoadRequest(@Single @Optional Collection<String> objectIds, @Optional CMSessionToken sessionToken, @Optional CMApiCredentials apiCredentials, @Optional CMServerFunction serverFunction, Response.Listener<StreamedCMObjectResponse> successListener, @Optional Response.ErrorListener errorListener) {
+        this(BaseObjectLoadRequest.BASE_URL.copy().objectIds(objectIds), sessionToken, apiCredentials, serverFunction, successListener, errorListener);
+    }
+
+    BaseStreamingObjectLoadRequest(CMURLBuilder url, CMSessionToken sessionToken, CMApiCredentials apiCredentials, CMServerFunction serverFunction, Response.Listener<StreamedCMObjectResponse> successListener, Response.ErrorListener errorListener) {
+        super(Method.GET, url.user(sessionToken).serverFunction(serverFunction).asUrlString(), null, sessionToken, apiCredentials, successListener, errorListener);
+        setShouldCache(false);
+    }
+
+    @Override
+    public void parseResponseStream(InputStream content, int statusCode, Map<String, String> headers) throws IOException {
+        Map<String, CMObject> objects = new LinkedHashMap<String, CMObject>();
+        Map<String, String> errors = new LinkedHashMap<String, String>();
+        int count = -1;
+        JsonParser parser = JSON_FACTORY.createParser(content);
+        try {
+            if(parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException("Expected the response to be a JSON object", parser.getCurrentLocation());
+            }
+            while(parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if(SUCCESS.equals(fieldName) && value == JsonToken.START_OBJECT) {
+                    readObjects(parser, objects);
+                } else if(ERRORS.equals(fieldName) && value == JsonToken.START_OBJECT) {
+                    readErrors(parser, errors);
+                } else if(COUNT.equals(fieldName) && value == JsonToken.VALUE_NUMBER_INT) {
+                    count = parser.getIntValue();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } finally {
+            parser.close();
+        }
+        parsedResponse = new StreamedCMObjectResponse(objects, errors, count < 0 ? objects.size() : count, statusCode);
+    }
+
+    /**
+     * Reads each member of the success object and converts it into a CMObject before moving on to the next one
+     */
+    private static void readObjects(JsonParser parser, Map<String, CMObject> objects) throws IOException {
+        while(parser.nextToken() == JsonToken.FIELD_NAME) {
+            String objectId = parser.getCurrentName();
+            parser.nextToken();
+            objects.putAll(JsonUtilities.jsonToClassMap(copyCurrentValue(parser, objectId)));
+        }
+    }
+
+    private static void readErrors(JsonParser parser, Map<String, String> errors) throws IOException {
+        while(parser.nextToken() == JsonToken.FIELD_NAME) {
+            String key = parser.getCurrentName();
+            parser.nextToken();
+            errors.put(key, copyCurrentValue(parser, null));
+        }
+    }
+
+    /**
+     * Copy the value the parser is on into a String, optionally wrapped in an object under the given key. Only
+     * the single value is buffered
+     */
+    private static String copyCurrentValue(JsonParser parser, String key) throws IOException {
+        StringWriter writer = new StringWriter();
+        JsonGenerator generator = JSON_FACTORY.createGenerator(writer);
+        if(key != null) {
+            generator.writeStartObject();
+            generator.writeFieldName(key);
+        }
+        generator.copyCurrentStructure(parser);
+        if(key != null) generator.writeEndObject();
+        generator.close();
+        return writer.toString();
+    }
+
+    @Override
+    protected Response<StreamedCMObjectResponse> parseNetworkResponse(NetworkResponse networkResponse) {
+        StreamedCMObjectResponse response = parsedResponse;
+        if(response == null) response = new StreamedCMObjectResponse(null, null, 0, networkResponse.statusCode);
+        return Response.success(response, null);
+    }
+
+    @Override
+    public int getRequestType() {
+        return REQUEST_TYPE;
+    }
+}
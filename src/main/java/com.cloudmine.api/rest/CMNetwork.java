@@ -5,6 +5,7 @@ import com.android.volley.Cache;
 import com.android.volley.Network;
 import com.android.volley.NetworkResponse;
 import com.android.volley.NoConnectionError;
+import com.android.volley.ParseError;
 import com.android.volley.Request;
 import com.android.volley.RetryPolicy;
 import com.android.volley.ServerError;
@@ -14,6 +15,7 @@ import com.android.volley.VolleyLog;
 import com.android.volley.toolbox.ByteArrayPool;
 import com.android.volley.toolbox.HttpStack;
 import com.android.volley.toolbox.PoolingByteArrayOutputStream;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
@@ -65,6 +67,14 @@ public class CMNetwork implements Network {
 
     @Override
     public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+        if (isOfflineOnly(request)) {
+            // Volley sends expired entries to the network; offline requests answer from them regardless of age
+            Cache.Entry entry = request.getCacheEntry();
+            if (entry == null) {
+                throw new VolleyError("No cached response for offline only request " + request.getUrl());
+            }
+            return new NetworkResponse(HttpStatus.SC_NOT_MODIFIED, entry.data, entry.responseHeaders, true);
+        }
         long requestStart = SystemClock.elapsedRealtime();
         while (true) {
             HttpResponse httpResponse = null;
@@ -80,11 +90,20 @@ public class CMNetwork implements Network {
 
                 responseHeaders = convertHeaders(httpResponse.getAllHeaders());
                 // Handle cache validation.
-                if (statusCode == HttpStatus.SC_NOT_MODIFIED) {
+                if (statusCode == HttpStatus.SC_NOT_MODIFIED && request.getCacheEntry() != null) {
                     return new NetworkResponse(HttpStatus.SC_NOT_MODIFIED,
                             request.getCacheEntry().data, responseHeaders, true);
                 }
 
+                // Streaming requests parse successful bodies straight off the connection
+                if (request instanceof StreamingRequest && httpResponse.getEntity() != null &&
+                        statusCode >= 200 && statusCode <= 299) {
+                    streamEntity((StreamingRequest) request, httpResponse.getEntity(), statusCode, responseHeaders);
+                    long requestLifetime = SystemClock.elapsedRealtime() - requestStart;
+                    logSlowRequests(requestLifetime, request, null, statusLine);
+                    return new NetworkResponse(statusCode, new byte[0], responseHeaders, false);
+                }
+
                 // Some responses such as 204s do not have content.  We must check.
                 if (httpResponse.getEntity() != null) {
                     responseContents = entityToBytes(httpResponse.getEntity());
@@ -165,6 +184,14 @@ public class CMNetwork implements Network {
         request.addMarker(String.format("%s-retry [timeout=%s]", logPrefix, oldTimeout));
     }
 
+    private static boolean isOfflineOnly(Request<?> request) {
+        if (!(request instanceof CloudMineRequest)) {
+            return false;
+        }
+        CachePolicy cachePolicy = ((CloudMineRequest) request).getCachePolicy();
+        return cachePolicy != null && cachePolicy.getType() == CachePolicy.Type.OFFLINE_ONLY;
+    }
+
     private void addCacheHeaders(Map<String, String> headers, Cache.Entry entry) {
         // If there's no cache entry, we're done.
         if (entry == null) {
@@ -175,7 +202,11 @@ public class CMNetwork implements Network {
             headers.put("If-None-Match", entry.etag);
         }
 
-        if (entry.serverDate > 0) {
+        // Prefer the server's own Last-Modified, sent back exactly as it was given
+        String lastModified = CloudMineRequest.getHeader(entry.responseHeaders, CloudMineRequest.LAST_MODIFIED_HEADER);
+        if (lastModified != null) {
+            headers.put("If-Modified-Since", lastModified);
+        } else if (entry.serverDate > 0) {
             Date refTime = new Date(entry.serverDate);
             headers.put("If-Modified-Since", DateUtils.formatDate(refTime));
         }
@@ -216,6 +247,28 @@ public class CMNetwork implements Network {
         }
     }
 
+    /** Hands the contents of the HttpEntity to the request to parse, without buffering them. */
+    private void streamEntity(StreamingRequest request, HttpEntity entity, int statusCode, Map<String, String> headers) throws IOException, VolleyError {
+        try {
+            InputStream in = entity.getContent();
+            if (in == null) {
+                throw new ServerError();
+            }
+            request.parseResponseStream(in, statusCode, headers);
+        } catch (JsonProcessingException e) {
+            // A malformed body is not a connection problem, so it must not be retried or reported as a server error
+            throw new ParseError(e);
+        } catch (RuntimeException e) {
+            throw new ParseError(e);
+        } finally {
+            try {
+                entity.consumeContent();
+            } catch (IOException e) {
+                VolleyLog.v("Error occured when calling consumingContent");
+            }
+        }
+    }
+
     /**
      * Converts Headers[] to Map<String, String>.
      */
@@ -0,0 +1,118 @@
+package com.cloudmine.api.rest;
+
+/**
+ * How a {@link CloudMineRequest} uses the response cache. Set one on a request with
+ * {@link CloudMineRequest#setCachePolicy(CachePolicy)} or {@link RequestBuilder#cachePolicy(CachePolicy)}, or for every
+ * request of a type with {@link CloudMineRequest#setDefaultCachePolicy(int, CachePolicy)}. Requests without a policy
+ * follow {@link CloudMineRequest#setCachingEnabled(boolean)} and the application ttls, as before.
+ * Cached responses are fresh for the request's ttl.<br>
+ * A policy is applied when a response is stored: the entry's freshness and expiry come from the policy of the request
+ * that stored it. So that every request reads entries stored the way it expects, requests that follow the default
+ * policy for their type share one cache key, while a request with a different policy of its own stores and reads its
+ * entries under a separate key. NETWORK_ONLY and OFFLINE_ONLY requests never store entries; OFFLINE_ONLY reads the
+ * entries stored under the default policy, whatever their age.
+ * <br>
+ * Copyright CloudMine, Inc. All rights reserved<br>
+ * See LICENSE file included with SDK for details.
+ */
+public final class CachePolicy {
+
+    public enum Type {
+        /** Always go to the network; responses are not cached */
+        NETWORK_ONLY,
+        /** Use a fresh cached response if there is one, otherwise go to the network. Delivers once */
+        CACHE_FIRST,
+        /** Deliver the cached response, if any, and then the network response */
+        CACHE_THEN_NETWORK,
+        /**
+         * Use a fresh cached response. A stale one that is within the max stale time is delivered immediately and
+         * revalidated in the background; the refreshed response is only delivered if it changed
+         */
+        STALE_WHILE_REVALIDATE,
+        /** Only use the cache, no matter how old the response is. Fails if nothing is cached */
+        OFFLINE_ONLY
+    }
+
+    public static final CachePolicy NETWORK_ONLY = new CachePolicy(Type.NETWORK_ONLY, 0);
+    public static final CachePolicy CACHE_FIRST = new CachePolicy(Type.CACHE_FIRST, 0);
+    public static final CachePolicy CACHE_THEN_NETWORK = new CachePolicy(Type.CACHE_THEN_NETWORK, 0);
+    public static final CachePolicy OFFLINE_ONLY = new CachePolicy(Type.OFFLINE_ONLY, 0);
+
+    /**
+     * @param maxStaleMs how long after a cached response stops being fresh it may still be delivered while it is revalidated
+     * @return
+     */
+    public static CachePolicy staleWhileRevalidate(long maxStaleMs) {
+        return new CachePolicy(Type.STALE_WHILE_REVALIDATE, maxStaleMs);
+    }
+
+    private final Type type;
+    private final long maxStaleMs;
+
+    private CachePolicy(Type type, long maxStaleMs) {
+        if(maxStaleMs < 0) throw new IllegalArgumentException("maxStaleMs cannot be negative");
+        this.type = type;
+        this.maxStaleMs = maxStaleMs;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public long getMaxStaleMs() {
+        return maxStaleMs;
+    }
+
+    /**
+     * @return true if responses loaded with this policy are stored in the cache
+     */
+    boolean storesResponses() {
+        return type != Type.NETWORK_ONLY && type != Type.OFFLINE_ONLY;
+    }
+
+    /**
+     * @param now
+     * @param ttl how long a response is fresh for
+     * @return when a cached response, stored now, should be refreshed from the network
+     */
+    long softExpiration(long now, long ttl) {
+        switch(type) {
+            case CACHE_THEN_NETWORK:
+                return now;
+            default:
+                return now + ttl;
+        }
+    }
+
+    /**
+     * @param now
+     * @param ttl how long a response is fresh for
+     * @return when a cached response, stored now, can no longer be delivered without going to the network
+     */
+    long expiration(long now, long ttl) {
+        switch(type) {
+            case STALE_WHILE_REVALIDATE:
+                return now + ttl + maxStaleMs;
+            default:
+                return now + ttl;
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o) return true;
+        if(!(o instanceof CachePolicy)) return false;
+        CachePolicy that = (CachePolicy) o;
+        return type == that.type && maxStaleMs == that.maxStaleMs;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * type.hashCode() + (int) (maxStaleMs ^ (maxStaleMs >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return type == Type.STALE_WHILE_REVALIDATE ? type + "(" + maxStaleMs + "ms)" : type.toString();
+    }
+}
@@ -0,0 +1,256 @@
+package com.cloudmine.api.rest;
+
+import com.android.volley.Cache;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Remembers which cached object load responses contain which objects, so that when this client saves or deletes
+ * objects, the cached responses that would now be out of date are expired instead of being served until their ttl
+ * runs out. Loads of specific object ids are only expired when one of those objects changes; any other load, such as
+ * loading all objects or a search, may gain or lose objects on any write, so it is expired by every write.
+ * Expired entries keep their validators, so the next load is a conditional request.<br>
+ * At most {@link #MAX_RECORDED_LOADS} loads are remembered, least recently used first out. A load that is dropped
+ * from the index is expired right away, since later writes could no longer find it.<br>
+ * A load that is still in flight when a write succeeds can finish after the write expired the cache, and would then
+ * store what it read before the write. So every write is stamped with a generation: loads take {@link #generation()}
+ * when they start, and {@link #isChangedSince(long, java.util.Collection)} tells them not to record or cache a
+ * response if a write that could affect it happened since.
+ * <br>
+ * Copyright CloudMine, Inc. All rights reserved<br>
+ * See LICENSE file included with SDK for details.
+ */
+class CachedObjectIndex {
+    private static final Logger LOG = LoggerFactory.getLogger(CachedObjectIndex.class);
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final String SUCCESS_KEY = "success";
+    static final int MAX_RECORDED_LOADS = 512;
+    //How many recently changed object ids remember their write generation; older writes fall back to forgottenGeneration
+    private static final int MAX_TRACKED_WRITES = 1024;
+
+    private static final Object indexLock = new Object();
+    private static final Map<String, Set<String>> cacheKeysByObjectId = new HashMap<String, Set<String>>();
+    //access ordered, so the least recently used load is first
+    private static final LinkedHashMap<String, RecordedLoad> loadsByCacheKey = new LinkedHashMap<String, RecordedLoad>(16, 0.75f, true);
+    //the loads that every write affects, kept apart so a write doesn't have to look at every load
+    private static final Set<String> unspecificCacheKeys = new HashSet<String>();
+    private static long generation;
+    //the newest write of any object, which is what loads that aren't of specific ids are compared against
+    private static long lastWriteGeneration;
+    private static long forgottenGeneration;
+    private static final LinkedHashMap<String, Long> writeGenerations = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            if(size() <= MAX_TRACKED_WRITES) return false;
+            forgottenGeneration = Math.max(forgottenGeneration, eldest.getValue());
+            return true;
+        }
+    };
+
+    /**
+     * @return the current write generation; loads take this when they start, and pass it to
+     * {@link #isChangedSince(long, java.util.Collection)}
+     */
+    static long generation() {
+        synchronized (indexLock) {
+            return generation;
+        }
+    }
+
+    /**
+     * @param loadGeneration the result of {@link #generation()} from when the load started
+     * @param objectIds the ids the load was for, or null if it wasn't for specific ids
+     * @return true if a save or delete that could change the load's response succeeded after the load started
+     */
+    static boolean isChangedSince(long loadGeneration, Collection<String> objectIds) {
+        synchronized (indexLock) {
+            if(objectIds == null) return lastWriteGeneration > loadGeneration;
+            if(forgottenGeneration > loadGeneration) return true;
+            for(String objectId : objectIds) {
+                Long written = writeGenerations.get(objectId);
+                if(written != null && written > loadGeneration) return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Record which objects are in a cached load response. Cheap to call with a response that was already recorded,
+     * such as one served from the cache
+     * @param cache the response cache the load is stored in; loads dropped to make room are expired in it
+     * @param cacheKey
+     * @param data the response body
+     * @param specificObjectIds true if the load was for specific object ids, so only changes to them affect it
+     */
+    static void recordLoad(Cache cache, String cacheKey, byte[] data, boolean specificObjectIds) {
+        if(cache == null || cacheKey == null || data == null) return;
+        synchronized (indexLock) {
+            RecordedLoad recorded = loadsByCacheKey.get(cacheKey);
+            if(recorded != null && recorded.isRecordOf(data)) return;
+        }
+        //parse outside the lock; it's the only slow part
+        Set<String> objectIds = successObjectIds(data);
+        RecordedLoad load = new RecordedLoad(data, objectIds);
+        List<String> dropped = new ArrayList<String>();
+        synchronized (indexLock) {
+            forget(cacheKey);
+            loadsByCacheKey.put(cacheKey, load);
+            if(!specificObjectIds) unspecificCacheKeys.add(cacheKey);
+            for(String objectId : objectIds) {
+                Set<String> cacheKeys = cacheKeysByObjectId.get(objectId);
+                if(cacheKeys == null) {
+                    cacheKeys = new HashSet<String>();
+                    cacheKeysByObjectId.put(objectId, cacheKeys);
+                }
+                cacheKeys.add(cacheKey);
+            }
+            Iterator<String> eldest = loadsByCacheKey.keySet().iterator();
+            while(loadsByCacheKey.size() - dropped.size() > MAX_RECORDED_LOADS && eldest.hasNext()) {
+                dropped.add(eldest.next());
+            }
+            for(String droppedKey : dropped) {
+                forget(droppedKey);
+            }
+        }
+        expire(cache, dropped);
+    }
+
+    /**
+     * Stamp a successful save or delete, and expire the cached loads it affects
+     * @param cache the response cache; if null, only the write is stamped
+     * @param modificationResponse the body of the save or delete response, whose success keys are the changed object ids
+     */
+    static void objectsChanged(Cache cache, byte[] modificationResponse) {
+        if(modificationResponse == null) return;
+        expire(cache, affectedCacheKeys(successObjectIds(modificationResponse), false));
+    }
+
+    /**
+     * Stamp a write to every object, and expire every cached load; used when all objects are deleted
+     * @param cache the response cache; if null, only the write is stamped
+     */
+    static void allObjectsChanged(Cache cache) {
+        expire(cache, affectedCacheKeys(null, true));
+    }
+
+    private static List<String> affectedCacheKeys(Collection<String> changedObjectIds, boolean all) {
+        Set<String> affected = new HashSet<String>();
+        synchronized (indexLock) {
+            long written = ++generation;
+            lastWriteGeneration = written;
+            if(all) forgottenGeneration = written;
+            affected.addAll(all ? loadsByCacheKey.keySet() : unspecificCacheKeys);
+            if(changedObjectIds != null) {
+                for(String objectId : changedObjectIds) {
+                    writeGenerations.put(objectId, written);
+                    Set<String> cacheKeys = cacheKeysByObjectId.get(objectId);
+                    if(cacheKeys != null) affected.addAll(cacheKeys);
+                }
+            }
+            //forgotten until they are loaded again, when they are recorded with their new contents
+            for(String cacheKey : affected) {
+                forget(cacheKey);
+            }
+        }
+        return new ArrayList<String>(affected);
+    }
+
+    private static void expire(Cache cache, List<String> cacheKeys) {
+        if(cache == null) return;
+        for(String cacheKey : cacheKeys) {
+            cache.invalidate(cacheKey, true);
+        }
+    }
+
+    /**
+     * Must be called while holding indexLock
+     */
+    private static void forget(String cacheKey) {
+        RecordedLoad removed = loadsByCacheKey.remove(cacheKey);
+        if(removed == null) return;
+        unspecificCacheKeys.remove(cacheKey);
+        for(String objectId : removed.objectIds) {
+            Set<String> cacheKeys = cacheKeysByObjectId.get(objectId);
+            if(cacheKeys == null) continue;
+            cacheKeys.remove(cacheKey);
+            if(cacheKeys.isEmpty()) cacheKeysByObjectId.remove(objectId);
+        }
+    }
+
+    /**
+     * @return how many loads are remembered
+     */
+    static int recordedLoadCount() {
+        synchronized (indexLock) {
+            return loadsByCacheKey.size();
+        }
+    }
+
+    /**
+     * @param data a response of the form {"success": {"objectId": ...}, ...}
+     * @return the keys of the success object, without parsing their values
+     */
+    static Set<String> successObjectIds(byte[] data) {
+        Set<String> objectIds = new HashSet<String>();
+        try {
+            JsonParser parser = JSON_FACTORY.createParser(data);
+            try {
+                if(parser.nextToken() != JsonToken.START_OBJECT) return objectIds;
+                while(parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = parser.getCurrentName();
+                    JsonToken value = parser.nextToken();
+                    if(SUCCESS_KEY.equals(name) && value == JsonToken.START_OBJECT) {
+                        while(parser.nextToken() == JsonToken.FIELD_NAME) {
+                            objectIds.add(parser.getCurrentName());
+                            parser.nextToken();
+                            parser.skipChildren();
+                        }
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            } finally {
+                parser.close();
+            }
+        } catch (IOException e) {
+            LOG.error("Unable to read object ids from response", e);
+        }
+        return objectIds;
+    }
+
+    private static class RecordedLoad {
+        //weak, so the index never keeps a response body alive; the hash covers bodies read back from disk
+        private final WeakReference<byte[]> data;
+        private final int length;
+        private final int hash;
+        private final Set<String> objectIds;
+
+        RecordedLoad(byte[] data, Set<String> objectIds) {
+            this.data = new WeakReference<byte[]>(data);
+            this.length = data.length;
+            this.hash = Arrays.hashCode(data);
+            this.objectIds = objectIds;
+        }
+
+        boolean isRecordOf(byte[] other) {
+            return data.get() == other || (length == other.length && hash == Arrays.hashCode(other));
+        }
+    }
+}
@@ -7,8 +7,10 @@ import com.android.volley.Cache;
 import com.android.volley.DefaultRetryPolicy;
 import com.android.volley.NetworkResponse;
 import com.android.volley.Request;
+import com.android.volley.RequestQueue;
 import com.android.volley.Response;
 import com.android.volley.VolleyError;
+import com.android.volley.toolbox.HttpHeaderParser;
 import com.cloudmine.api.CMApiCredentials;
 import com.cloudmine.api.CMSessionToken;
 import com.cloudmine.api.HasHandler;
@@ -17,7 +19,10 @@ import com.cloudmine.api.rest.options.CMServerFunction;
 import com.cloudmine.api.rest.response.ResponseBase;
 
 import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * <br>
@@ -27,6 +32,9 @@ import java.util.Map;
 public abstract class CloudMineRequest<RESPONSE> extends Request<RESPONSE>  implements HasHandler{
 
     public static final String REQUEST_TAG = "CloudMineRequest";
+    static final String ETAG_HEADER = "ETag";
+    static final String LAST_MODIFIED_HEADER = "Last-Modified";
+    static final String DATE_HEADER = "Date";
 
 
     private static final int RETRY_TIME_MS = 35000;
@@ -76,6 +84,23 @@ public abstract class CloudMineRequest<RESPONSE> extends Request<RESPONSE>  impl
     private static long applicationSoftTtl = 0;
     private static long applicationTtl = 120000;
     private static boolean isCachingEnabled = false;
+    private static final Map<Integer, CachePolicy> defaultCachePolicies = new ConcurrentHashMap<Integer, CachePolicy>();
+
+    /**
+     * Set the cache policy used by every request of the given type that doesn't have its own. Like the application
+     * ttls, this should be set from the base Application, before any requests are made; entries already stored under
+     * another policy keep that policy's freshness until they are replaced
+     * @param requestType the REQUEST_TYPE of the request class, as returned by {@link #getRequestType()}
+     * @param cachePolicy the policy, or null to go back to following {@link #setCachingEnabled(boolean)}
+     */
+    public static void setDefaultCachePolicy(int requestType, CachePolicy cachePolicy) {
+        if(cachePolicy == null) defaultCachePolicies.remove(requestType);
+        else                    defaultCachePolicies.put(requestType, cachePolicy);
+    }
+
+    public static CachePolicy getDefaultCachePolicy(int requestType) {
+        return defaultCachePolicies.get(requestType);
+    }
 
     public static boolean isCachingEnabled() {
         return isCachingEnabled;
@@ -120,6 +145,10 @@ public abstract class CloudMineRequest<RESPONSE> extends Request<RESPONSE>  impl
 
     private long softTtl = applicationSoftTtl;
     private long ttl = applicationTtl;
+    private CachePolicy cachePolicy;
+    private volatile RequestQueue requestQueue;
+    //set when a revalidation found the response delivered from the cache is unchanged, so it isn't delivered again
+    private volatile boolean skipUnchangedResponse;
     private Response.Listener<RESPONSE> responseListener;
     private String apiKey;
     private String body;
@@ -207,6 +236,10 @@ public abstract class CloudMineRequest<RESPONSE> extends Request<RESPONSE>  impl
 
     @Override
     protected void deliverResponse(RESPONSE response) {
+        if(skipUnchangedResponse) {
+            skipUnchangedResponse = false;
+            return;
+        }
         if(handler != null) {
             synchronized (handlerLock) { //see deliver error for why we check this twice
                 if(handler != null) {
@@ -256,19 +289,68 @@ public abstract class CloudMineRequest<RESPONSE> extends Request<RESPONSE>  impl
         return headerMapping;
     }
 
+    /**
+     * Build the cache entry for a response. The entry keeps the server's validators, so once it is stale the request
+     * is revalidated with If-None-Match/If-Modified-Since, and an unchanged response comes back as a 304 with no body.
+     * A 304 carries the cached data; its headers are merged over the cached ones, since servers may leave validators out
+     * @param response
+     * @return
+     */
     protected Cache.Entry getCacheEntry(NetworkResponse response) {
-        if(isCachingEnabled) {
+        CachePolicy cachePolicy = getCachePolicy();
+        if(cachePolicy == null ? isCachingEnabled : cachePolicy.getType() != CachePolicy.Type.NETWORK_ONLY) {
+            long now = System.currentTimeMillis();
+            Cache.Entry previous = getCacheEntry();
+            //offline requests only ever read the cache, so leave the entry as it was
+            if(cachePolicy != null && cachePolicy.getType() == CachePolicy.Type.OFFLINE_ONLY) return previous;
+            if(cachePolicy != null && cachePolicy.getType() == CachePolicy.Type.STALE_WHILE_REVALIDATE &&
+                    hasHadResponseDelivered() && previous != null && Arrays.equals(previous.data, response.data)) {
+                skipUnchangedResponse = true;
+            }
+            //header names are case insensitive, so a newer "etag" must replace a cached "ETag" rather than sit beside it
+            Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+            if(response.notModified && previous != null && previous.responseHeaders != null) {
+                headers.putAll(previous.responseHeaders);
+            }
+            if(response.headers != null) headers.putAll(response.headers);
+
             Cache.Entry entry = new Cache.Entry();
             entry.data = response.data;
-            entry.serverDate = System.currentTimeMillis();
-            entry.softTtl = System.currentTimeMillis() + getSoftTtl();
-            entry.ttl = System.currentTimeMillis() + getTtl();
+            entry.responseHeaders = headers;
+            entry.etag = getHeader(headers, ETAG_HEADER);
+            if(entry.etag == null && response.notModified && previous != null) entry.etag = previous.etag;
+            String serverDate = getHeader(headers, DATE_HEADER);
+            entry.serverDate = serverDate == null ? now : HttpHeaderParser.parseDateAsEpoch(serverDate);
+            if(entry.serverDate <= 0) entry.serverDate = now;
+            if(cachePolicy == null) {
+                entry.softTtl = now + getSoftTtl();
+                entry.ttl = now + getTtl();
+            } else {
+                entry.softTtl = cachePolicy.softExpiration(now, getTtl());
+                entry.ttl = cachePolicy.expiration(now, getTtl());
+            }
             return entry;
         }else {
             return getCacheEntry();
         }
     }
 
+    /**
+     * Look up a header, ignoring the case of its name
+     * @param headers
+     * @param name
+     * @return the header's value, or null if it isn't there
+     */
+    static String getHeader(Map<String, String> headers, String name) {
+        if(headers == null) return null;
+        String value = headers.get(name);
+        if(value != null) return value;
+        for(Map.Entry<String, String> header : headers.entrySet()) {
+            if(name.equalsIgnoreCase(header.getKey())) return header.getValue();
+        }
+        return null;
+    }
+
     public long getSoftTtl() {
         return softTtl;
     }
@@ -285,6 +367,58 @@ public abstract class CloudMineRequest<RESPONSE> extends Request<RESPONSE>  impl
         this.ttl = ttl;
     }
 
+    /**
+     * @return the policy set on this request, or the default for its type; null if neither was set
+     */
+    public CachePolicy getCachePolicy() {
+        return cachePolicy != null ? cachePolicy : getDefaultCachePolicy(getRequestType());
+    }
+
+    /**
+     * Set how this request uses the response cache, overriding the default for its type. Must be called before the
+     * request is added to a RequestQueue
+     * @param cachePolicy
+     */
+    public void setCachePolicy(CachePolicy cachePolicy) {
+        this.cachePolicy = cachePolicy;
+    }
+
+    /**
+     * Entries keep the freshness of the policy that stored them, so a request with a policy of its own that differs
+     * from the default for its type stores and reads its entries under a separate key. See {@link CachePolicy}
+     * @return
+     */
+    @Override
+    public String getCacheKey() {
+        String cacheKey = super.getCacheKey();
+        CachePolicy cachePolicy = this.cachePolicy;
+        if(cachePolicy == null || !cachePolicy.storesResponses() || cachePolicy.equals(getDefaultCachePolicy(getRequestType()))) {
+            return cacheKey;
+        }
+        return cacheKey + "#" + cachePolicy;
+    }
+
+    @Override
+    public Request<?> setRequestQueue(RequestQueue requestQueue) {
+        //the queue checks shouldCache right after this, and it can't be overridden
+        CachePolicy cachePolicy = getCachePolicy();
+        if(cachePolicy != null && cachePolicy.getType() == CachePolicy.Type.NETWORK_ONLY) setShouldCache(false);
+        this.requestQueue = requestQueue;
+        return super.setRequestQueue(requestQueue);
+    }
+
+    /**
+     * @return the response cache of the queue this request was added to, or null if it hasn't been added to one
+     */
+    protected Cache getResponseCache() {
+        RequestQueue requestQueue = this.requestQueue;
+        return requestQueue == null ? null : requestQueue.getCache();
+    }
+
+    protected static boolean isSuccess(NetworkResponse networkResponse) {
+        return networkResponse.statusCode >= 200 && networkResponse.statusCode <= 299;
+    }
+
     public abstract int getRequestType();
 
     public void setHandler(Handler handler) {
@@ -0,0 +1,107 @@
+package com.cloudmine.api.rest;
+
+import com.android.volley.Cache;
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.toolbox.NoCache;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * A view of the shared RequestQueue that remembers which requests were added through it. Requests are run by the
+ * shared queue; this class never starts dispatcher threads of its own. Stopping or cancelling on this queue only
+ * affects the requests that were added to it.
+ * <br>
+ * Copyright CloudMine, Inc. All rights reserved<br>
+ * See LICENSE file included with SDK for details.
+ */
+public class ContextScopedRequestQueue extends RequestQueue {
+
+    private final RequestQueue sharedQueue;
+    //weak so that finished requests can be collected without us having to hook into RequestQueue.finish
+    private final Set<Request<?>> scopedRequests = Collections.synchronizedSet(
+            Collections.newSetFromMap(new WeakHashMap<Request<?>, Boolean>()));
+
+    ContextScopedRequestQueue(RequestQueue sharedQueue) {
+        //The superclass only allocates an empty dispatcher array here; it is never started
+        super(new NoCache(), null, 1);
+        this.sharedQueue = sharedQueue;
+    }
+
+    @Override
+    public <T> Request<T> add(Request<T> request) {
+        scopedRequests.add(request);
+        return sharedQueue.add(request);
+    }
+
+    /**
+     * Does nothing; the shared queue is started when it is created
+     */
+    @Override
+    public void start() {
+    }
+
+    /**
+     * Cancels the requests in this scope. The shared queue keeps running
+     */
+    @Override
+    public void stop() {
+        cancelAllScoped();
+    }
+
+    @Override
+    public int getSequenceNumber() {
+        return sharedQueue.getSequenceNumber();
+    }
+
+    @Override
+    public Cache getCache() {
+        return sharedQueue.getCache();
+    }
+
+    @Override
+    public void cancelAll(final RequestFilter filter) {
+        sharedQueue.cancelAll(new RequestFilter() {
+            @Override
+            public boolean apply(Request<?> request) {
+                return scopedRequests.contains(request) && filter.apply(request);
+            }
+        });
+    }
+
+    @Override
+    public void cancelAll(final Object tag) {
+        if (tag == null) {
+            throw new IllegalArgumentException("Cannot cancelAll with a null tag");
+        }
+        cancelAll(new RequestFilter() {
+            @Override
+            public boolean apply(Request<?> request) {
+                return request.getTag() == tag;
+            }
+        });
+    }
+
+    /**
+     * Cancel every request that was added through this queue
+     */
+    public void cancelAllScoped() {
+        cancelAll(new RequestFilter() {
+            @Override
+            public boolean apply(Request<?> request) {
+                return true;
+            }
+        });
+        scopedRequests.clear();
+    }
+
+    /**
+     * Get the queue that actually runs the requests
+     * @return
+     */
+    public RequestQueue getSharedQueue() {
+        return sharedQueue;
+    }
+}
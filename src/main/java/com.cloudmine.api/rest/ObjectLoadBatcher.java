@@ -0,0 +1,255 @@
+package com.cloudmine.api.rest;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import com.android.volley.RequestQueue;
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+import com.cloudmine.api.CMApiCredentials;
+import com.cloudmine.api.CMObject;
+import com.cloudmine.api.CMSessionToken;
+import com.cloudmine.api.rest.options.CMServerFunction;
+import com.cloudmine.api.rest.response.CMObjectResponse;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Coalesces single object loads that happen close together into one {@link BaseObjectLoadRequest}. Loads are
+ * grouped by credentials, session and server function; once the batch window has passed, one request is sent
+ * per group and each caller is given just the object it asked for. Useful when something like a list adapter
+ * loads one object per row. Loads made with a Context are also grouped by that Context and sent through its
+ * {@link SharedRequestQueueHolders#getRequestQueue(Context) scoped queue}, so
+ * {@link SharedRequestQueueHolders#cancelRequests(Context)} cancels them. A group with more ids than fit in one
+ * request url is split over several requests.
+ * <br>
+ * Copyright CloudMine, Inc. All rights reserved<br>
+ * See LICENSE file included with SDK for details.
+ */
+public class ObjectLoadBatcher {
+
+    /** Default amount of time to wait for more loads before sending a batch; about one frame. */
+    public static final int DEFAULT_BATCH_WINDOW_MS = 16;
+    /** Default most object ids to load in one request. */
+    public static final int DEFAULT_MAX_IDS_PER_REQUEST = 100;
+    //Object ids are sent in the url; servers commonly reject urls longer than 8KB with a 414
+    private static final int MAX_ID_CHARACTERS_PER_REQUEST = 4 * 1024;
+
+    private static ObjectLoadBatcher objectLoadBatcher;
+
+    /**
+     * Get the application wide ObjectLoadBatcher
+     * @param context any context; only its application context is retained
+     * @return
+     */
+    public static synchronized ObjectLoadBatcher getObjectLoadBatcher(Context context) {
+        if(objectLoadBatcher == null) {
+            objectLoadBatcher = new ObjectLoadBatcher(SharedRequestQueueHolders.getSharedRequestQueue(context));
+        }
+        return objectLoadBatcher;
+    }
+
+    private final RequestQueue requestQueue;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Object batchLock = new Object();
+    /** Queue the batch will be sent through -> batch key -> loads waiting for the window to close */
+    private final Map<RequestQueue, Map<String, PendingBatch>> pendingBatches = new HashMap<RequestQueue, Map<String, PendingBatch>>();
+    private volatile int batchWindowMs = DEFAULT_BATCH_WINDOW_MS;
+    private volatile int maxIdsPerRequest = DEFAULT_MAX_IDS_PER_REQUEST;
+
+    public ObjectLoadBatcher(RequestQueue requestQueue) {
+        this.requestQueue = requestQueue;
+    }
+
+    /**
+     * Set how long to wait after the first load of a batch before the batch is sent
+     * @param batchWindowMs
+     */
+    public void setBatchWindowMs(int batchWindowMs) {
+        this.batchWindowMs = batchWindowMs < 0 ? 0 : batchWindowMs;
+    }
+
+    public int getBatchWindowMs() {
+        return batchWindowMs;
+    }
+
+    /**
+     * Set the most object ids to load in one request; larger batches are split over several requests. Batches are
+     * also split when their ids would make the request url too long
+     * @param maxIdsPerRequest
+     */
+    public void setMaxIdsPerRequest(int maxIdsPerRequest) {
+        this.maxIdsPerRequest = maxIdsPerRequest < 1 ? 1 : maxIdsPerRequest;
+    }
+
+    public int getMaxIdsPerRequest() {
+        return maxIdsPerRequest;
+    }
+
+    /**
+     * Load the object with the given id as part of the next batch. The listener is called with the object, or
+     * null if the server did not return an object with that id. If the batch fails, every caller's error listener
+     * is called with the error
+     * @param objectId
+     * @param sessionToken optional; if specified, the object is loaded at the user level
+     * @param apiCredentials optional; the default credentials are used if null
+     * @param serverFunction optional
+     * @param successListener
+     * @param errorListener optional
+     */
+    public void load(String objectId, CMSessionToken sessionToken, CMApiCredentials apiCredentials, CMServerFunction serverFunction, Response.Listener<CMObject> successListener, Response.ErrorListener errorListener) {
+        load(requestQueue, objectId, sessionToken, apiCredentials, serverFunction, successListener, errorListener);
+    }
+
+    /**
+     * Load the object with the given id as part of the next batch started from the same Context. The batch is sent
+     * through the Context's scoped queue, so it is cancelled by {@link SharedRequestQueueHolders#cancelRequests(Context)}
+     * @param context the context the load is made for, such as the Activity showing the object
+     * @param objectId
+     * @param sessionToken optional; if specified, the object is loaded at the user level
+     * @param apiCredentials optional; the default credentials are used if null
+     * @param serverFunction optional
+     * @param successListener
+     * @param errorListener optional
+     */
+    public void load(Context context, String objectId, CMSessionToken sessionToken, CMApiCredentials apiCredentials, CMServerFunction serverFunction, Response.Listener<CMObject> successListener, Response.ErrorListener errorListener) {
+        load(SharedRequestQueueHolders.getRequestQueue(context), objectId, sessionToken, apiCredentials, serverFunction, successListener, errorListener);
+    }
+
+    private void load(RequestQueue queue, String objectId, CMSessionToken sessionToken, CMApiCredentials apiCredentials, CMServerFunction serverFunction, Response.Listener<CMObject> successListener, Response.ErrorListener errorListener) {
+        if(apiCredentials == null) apiCredentials = CMApiCredentials.getCredentials();
+        String batchKey = getBatchKey(sessionToken, apiCredentials, serverFunction);
+        synchronized (batchLock) {
+            Map<String, PendingBatch> queueBatches = pendingBatches.get(queue);
+            if(queueBatches == null) {
+                queueBatches = new HashMap<String, PendingBatch>();
+                pendingBatches.put(queue, queueBatches);
+            }
+            PendingBatch batch = queueBatches.get(batchKey);
+            if(batch == null) {
+                batch = new PendingBatch(queue, batchKey, sessionToken, apiCredentials, serverFunction);
+                queueBatches.put(batchKey, batch);
+                handler.postDelayed(batch, batchWindowMs);
+            }
+            batch.addLoad(objectId, successListener, errorListener);
+        }
+    }
+
+    /**
+     * Send any batches that are still waiting for their window to close
+     */
+    public void flush() {
+        List<PendingBatch> toSend;
+        synchronized (batchLock) {
+            toSend = new ArrayList<PendingBatch>();
+            for(Map<String, PendingBatch> queueBatches : pendingBatches.values()) {
+                toSend.addAll(queueBatches.values());
+            }
+        }
+        for(PendingBatch batch : toSend) {
+            handler.removeCallbacks(batch);
+            batch.run();
+        }
+    }
+
+    static String getBatchKey(CMSessionToken sessionToken, CMApiCredentials apiCredentials, CMServerFunction serverFunction) {
+        boolean isValidSessionToken = !(sessionToken == null || CMSessionToken.FAILED.equals(sessionToken));
+        return new StringBuilder(apiCredentials.getBaseUrl()).append('#')
+                .append(apiCredentials.getIdentifier()).append('#')
+                .append(apiCredentials.getApiKey()).append('#')
+                .append(isValidSessionToken ? sessionToken.getSessionToken() : "").append('#')
+                .append(serverFunction == null ? "" : serverFunction.asUrlString()).toString();
+    }
+
+    private class PendingBatch implements Runnable {
+        private final RequestQueue queue;
+        private final String batchKey;
+        private final CMSessionToken sessionToken;
+        private final CMApiCredentials apiCredentials;
+        private final CMServerFunction serverFunction;
+        /** objectId -> everyone waiting on that object */
+        private final Map<String, List<PendingLoad>> loads = new LinkedHashMap<String, List<PendingLoad>>();
+
+        PendingBatch(RequestQueue queue, String batchKey, CMSessionToken sessionToken, CMApiCredentials apiCredentials, CMServerFunction serverFunction) {
+            this.queue = queue;
+            this.batchKey = batchKey;
+            this.sessionToken = sessionToken;
+            this.apiCredentials = apiCredentials;
+            this.serverFunction = serverFunction;
+        }
+
+        void addLoad(String objectId, Response.Listener<CMObject> successListener, Response.ErrorListener errorListener) {
+            List<PendingLoad> waiting = loads.get(objectId);
+            if(waiting == null) {
+                waiting = new ArrayList<PendingLoad>();
+                loads.put(objectId, waiting);
+            }
+            waiting.add(new PendingLoad(successListener, errorListener));
+        }
+
+        @Override
+        public void run() {
+            synchronized (batchLock) {
+                //If flush already sent this batch, there is nothing left to do
+                Map<String, PendingBatch> queueBatches = pendingBatches.get(queue);
+                if(queueBatches == null || queueBatches.get(batchKey) != this) return;
+                queueBatches.remove(batchKey);
+                if(queueBatches.isEmpty()) pendingBatches.remove(queue);
+            }
+            int maxIds = maxIdsPerRequest;
+            Map<String, List<PendingLoad>> requestLoads = new LinkedHashMap<String, List<PendingLoad>>();
+            int idCharacters = 0;
+            for(Map.Entry<String, List<PendingLoad>> entry : loads.entrySet()) {
+                int length = entry.getKey().length() + 1;
+                if(!requestLoads.isEmpty() &&
+                        (requestLoads.size() >= maxIds || idCharacters + length > MAX_ID_CHARACTERS_PER_REQUEST)) {
+                    send(requestLoads);
+                    requestLoads = new LinkedHashMap<String, List<PendingLoad>>();
+                    idCharacters = 0;
+                }
+                requestLoads.put(entry.getKey(), entry.getValue());
+                idCharacters += length;
+            }
+            if(!requestLoads.isEmpty()) send(requestLoads);
+        }
+
+        private void send(final Map<String, List<PendingLoad>> requestLoads) {
+            queue.add(new BaseObjectLoadRequest(new ArrayList<String>(requestLoads.keySet()), sessionToken, apiCredentials, serverFunction,
+                    new Response.Listener<CMObjectResponse>() {
+                        @Override
+                        public void onResponse(CMObjectResponse response) {
+                            for(Map.Entry<String, List<PendingLoad>> entry : requestLoads.entrySet()) {
+                                CMObject object = response.getCMObject(entry.getKey());
+                                for(PendingLoad load : entry.getValue()) {
+                                    if(load.successListener != null) load.successListener.onResponse(object);
+                                }
+                            }
+                        }
+                    },
+                    new Response.ErrorListener() {
+                        @Override
+                        public void onErrorResponse(VolleyError error) {
+                            for(List<PendingLoad> waiting : requestLoads.values()) {
+                                for(PendingLoad load : waiting) {
+                                    if(load.errorListener != null) load.errorListener.onErrorResponse(error);
+                                }
+                            }
+                        }
+                    }));
+        }
+    }
+
+    private static class PendingLoad {
+        private final Response.Listener<CMObject> successListener;
+        private final Response.ErrorListener errorListener;
+
+        PendingLoad(Response.Listener<CMObject> successListener, Response.ErrorListener errorListener) {
+            this.successListener = successListener;
+            this.errorListener = errorListener;
+        }
+    }
+}
@@ -38,7 +38,7 @@ public class ObjectLoadRequestBuilder extends RequestBuilder<ObjectLoadRequestBu
 
     @Override
     public BaseObjectLoadRequest build() {
-        return new BaseObjectLoadRequest(urlBuilder, sessionToken, credentials, serverFunction, successListener, errorListener);
+        return applyCachePolicy(new BaseObjectLoadRequest(urlBuilder, sessionToken, credentials, serverFunction, successListener, errorListener));
     }
 
     public ObjectLoadRequestBuilder search(String searchQuery) {
@@ -0,0 +1,335 @@
+package com.cloudmine.api.rest;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+import com.cloudmine.api.CMApiCredentials;
+import com.cloudmine.api.CMObject;
+import com.cloudmine.api.CMSessionToken;
+import com.cloudmine.api.rest.options.CMServerFunction;
+import com.cloudmine.api.rest.response.ObjectModificationResponse;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Buffers object saves and sends them as a single {@link BaseObjectModificationRequest}. Saves are grouped by
+ * credentials, session and server function. A batch is sent once the batch window has passed since its first save,
+ * or as soon as adding a save would push its UTF-8 encoded body past the maximum batch size. Each caller's listener
+ * is given an {@link ObjectModificationResponse} that only contains the result for the object that caller saved, as
+ * if it had been saved on its own. If the same object is saved more than once in a batch, only the latest version is
+ * sent.
+ * <br>
+ * Copyright CloudMine, Inc. All rights reserved<br>
+ * See LICENSE file included with SDK for details.
+ */
+public class ObjectSaveBatcher {
+    private static final Logger LOG = LoggerFactory.getLogger(ObjectSaveBatcher.class);
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final String SUCCESS = "success";
+    private static final String ERRORS = "errors";
+
+    public static final int DEFAULT_BATCH_WINDOW_MS = 100;
+    public static final int DEFAULT_MAX_BATCH_SIZE_BYTES = 64 * 1024;
+
+    private static ObjectSaveBatcher objectSaveBatcher;
+
+    /**
+     * Get the application wide ObjectSaveBatcher
+     * @param context any context; only its application context is retained
+     * @return
+     */
+    public static synchronized ObjectSaveBatcher getObjectSaveBatcher(Context context) {
+        if(objectSaveBatcher == null) {
+            objectSaveBatcher = new ObjectSaveBatcher(SharedRequestQueueHolders.getSharedRequestQueue(context));
+        }
+        return objectSaveBatcher;
+    }
+
+    private final RequestQueue requestQueue;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Object batchLock = new Object();
+    private final Map<String, PendingBatch> pendingBatches = new HashMap<String, PendingBatch>();
+    private volatile int batchWindowMs = DEFAULT_BATCH_WINDOW_MS;
+    private volatile int maxBatchSizeBytes = DEFAULT_MAX_BATCH_SIZE_BYTES;
+
+    public ObjectSaveBatcher(RequestQueue requestQueue) {
+        this.requestQueue = requestQueue;
+    }
+
+    /**
+     * Set how long to wait after the first save of a batch before the batch is sent
+     * @param batchWindowMs
+     */
+    public void setBatchWindowMs(int batchWindowMs) {
+        this.batchWindowMs = batchWindowMs < 0 ? 0 : batchWindowMs;
+    }
+
+    public int getBatchWindowMs() {
+        return batchWindowMs;
+    }
+
+    /**
+     * Set the largest body, in bytes of UTF-8 encoded JSON, a batch may have before it is sent early. A single object
+     * larger than this is still sent, on its own
+     * @param maxBatchSizeBytes
+     */
+    public void setMaxBatchSizeBytes(int maxBatchSizeBytes) {
+        this.maxBatchSizeBytes = maxBatchSizeBytes;
+    }
+
+    public int getMaxBatchSizeBytes() {
+        return maxBatchSizeBytes;
+    }
+
+    /**
+     * Save the given object as part of the next batch. The object is serialized immediately, so changes made to it
+     * after this call are not sent
+     * @param object
+     * @param sessionToken optional; if specified, the object is saved at the user level
+     * @param apiCredentials optional; the default credentials are used if null
+     * @param serverFunction optional
+     * @param successListener optional; called with the response for this object
+     * @param errorListener optional
+     */
+    public void save(CMObject object, CMSessionToken sessionToken, CMApiCredentials apiCredentials, CMServerFunction serverFunction, Response.Listener<ObjectModificationResponse> successListener, Response.ErrorListener errorListener) {
+        if(object == null) return;
+        if(apiCredentials == null) apiCredentials = CMApiCredentials.getCredentials();
+        String batchKey = ObjectLoadBatcher.getBatchKey(sessionToken, apiCredentials, serverFunction);
+        String keyedJson = stripOuterBraces(object.transportableRepresentation());
+        int keyedJsonBytes = utf8Length(keyedJson);
+        PendingBatch toSend = null;
+        synchronized (batchLock) {
+            PendingBatch batch = pendingBatches.get(batchKey);
+            if(batch != null && !batch.contains(object.getObjectId()) &&
+                    batch.getSize() + keyedJsonBytes > maxBatchSizeBytes) {
+                //sent below, outside of the lock
+                pendingBatches.remove(batchKey);
+                handler.removeCallbacks(batch);
+                toSend = batch;
+                batch = null;
+            }
+            if(batch == null) {
+                batch = new PendingBatch(batchKey, sessionToken, apiCredentials, serverFunction);
+                pendingBatches.put(batchKey, batch);
+                handler.postDelayed(batch, batchWindowMs);
+            }
+            batch.addSave(object.getObjectId(), keyedJson, successListener, errorListener);
+        }
+        if(toSend != null) toSend.send();
+    }
+
+    /**
+     * Send any batches that are still waiting for their window to close
+     */
+    public void flush() {
+        List<PendingBatch> toSend;
+        synchronized (batchLock) {
+            toSend = new ArrayList<PendingBatch>(pendingBatches.values());
+        }
+        for(PendingBatch batch : toSend) {
+            handler.removeCallbacks(batch);
+            batch.run();
+        }
+    }
+
+    /**
+     * transportableRepresentation gives {"id":{...}}; we want the "id":{...} part so it can be joined with others.
+     * Also used to combine the bodies of queued object saves
+     * @param json an object's JSON, keyed by its id
+     * @return the JSON without its outer braces, or the JSON unchanged if it isn't an object
+     */
+    public static String stripOuterBraces(String json) {
+        int start = json.indexOf('{');
+        int end = json.lastIndexOf('}');
+        if(start < 0 || end <= start) return json;
+        return json.substring(start + 1, end).trim();
+    }
+
+    /**
+     * @return how many bytes the string takes when encoded as UTF-8, without encoding it
+     */
+    static int utf8Length(String string) {
+        int length = 0;
+        for(int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            //each half of a surrogate pair counts 2, for the 4 bytes of the code point they make up
+            if(c < 0x80)                                                         length += 1;
+            else if(c < 0x800)                                                   length += 2;
+            else if(c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) length += 2;
+            else                                                                 length += 3;
+        }
+        return length;
+    }
+
+    /**
+     * Split a batch's modification response into the response each object would have got if it was saved on its own
+     * @param json the batch response, of the form {"success": {"objectId": ...}, "errors": {"objectId": ...}}
+     * @param objectIds the objects that were saved in the batch
+     * @param statusCode
+     * @return object id to a response whose success and errors only mention that object
+     * @throws IOException if the response is not JSON
+     */
+    static Map<String, ObjectModificationResponse> splitResponse(String json, Collection<String> objectIds, int statusCode) throws IOException {
+        Map<String, String> successes = new HashMap<String, String>();
+        Map<String, String> errors = new HashMap<String, String>();
+        JsonParser parser = JSON_FACTORY.createParser(json);
+        try {
+            if(parser.nextToken() != JsonToken.START_OBJECT) throw new IOException("Expected the response to be a JSON object");
+            while(parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if(SUCCESS.equals(name) && value == JsonToken.START_OBJECT)     readValues(parser, successes);
+                else if(ERRORS.equals(name) && value == JsonToken.START_OBJECT) readValues(parser, errors);
+                else                                                            parser.skipChildren();
+            }
+        } finally {
+            parser.close();
+        }
+        Map<String, ObjectModificationResponse> responses = new HashMap<String, ObjectModificationResponse>();
+        for(String objectId : objectIds) {
+            StringWriter writer = new StringWriter();
+            JsonGenerator generator = JSON_FACTORY.createGenerator(writer);
+            generator.writeStartObject();
+            writeValue(generator, SUCCESS, objectId, successes.get(objectId));
+            writeValue(generator, ERRORS, objectId, errors.get(objectId));
+            generator.writeEndObject();
+            generator.close();
+            responses.put(objectId, new ObjectModificationResponse(writer.toString(), statusCode));
+        }
+        return responses;
+    }
+
+    private static void readValues(JsonParser parser, Map<String, String> values) throws IOException {
+        while(parser.nextToken() == JsonToken.FIELD_NAME) {
+            String key = parser.getCurrentName();
+            parser.nextToken();
+            StringWriter writer = new StringWriter();
+            JsonGenerator generator = JSON_FACTORY.createGenerator(writer);
+            generator.copyCurrentStructure(parser);
+            generator.close();
+            values.put(key, writer.toString());
+        }
+    }
+
+    private static void writeValue(JsonGenerator generator, String fieldName, String objectId, String value) throws IOException {
+        generator.writeObjectFieldStart(fieldName);
+        if(value != null) {
+            generator.writeFieldName(objectId);
+            generator.writeRawValue(value);
+        }
+        generator.writeEndObject();
+    }
+
+    private class PendingBatch implements Runnable {
+        private final String batchKey;
+        private final CMSessionToken sessionToken;
+        private final CMApiCredentials apiCredentials;
+        private final CMServerFunction serverFunction;
+        /** objectId -> the most recent keyed JSON for that object */
+        private final Map<String, String> objectJson = new LinkedHashMap<String, String>();
+        /** each save's object id, paired with the listener that wants its result */
+        private final List<Map.Entry<String, Response.Listener<ObjectModificationResponse>>> successListeners = new ArrayList<Map.Entry<String, Response.Listener<ObjectModificationResponse>>>();
+        private final List<Response.ErrorListener> errorListeners = new ArrayList<Response.ErrorListener>();
+        /** in bytes of UTF-8 */
+        private int size = 2;
+        /** set on the network thread once the response has been split up */
+        private volatile Map<String, ObjectModificationResponse> responsesByObjectId;
+
+        PendingBatch(String batchKey, CMSessionToken sessionToken, CMApiCredentials apiCredentials, CMServerFunction serverFunction) {
+            this.batchKey = batchKey;
+            this.sessionToken = sessionToken;
+            this.apiCredentials = apiCredentials;
+            this.serverFunction = serverFunction;
+        }
+
+        boolean contains(String objectId) {
+            return objectJson.containsKey(objectId);
+        }
+
+        int getSize() {
+            return size;
+        }
+
+        void addSave(String objectId, String keyedJson, Response.Listener<ObjectModificationResponse> successListener, Response.ErrorListener errorListener) {
+            String replaced = objectJson.put(objectId, keyedJson);
+            size += replaced == null ?
+                    utf8Length(keyedJson) + 1 :
+                    utf8Length(keyedJson) - utf8Length(replaced);
+            if(successListener != null) {
+                successListeners.add(new AbstractMap.SimpleImmutableEntry<String, Response.Listener<ObjectModificationResponse>>(objectId, successListener));
+            }
+            if(errorListener != null) errorListeners.add(errorListener);
+        }
+
+        @Override
+        public void run() {
+            synchronized (batchLock) {
+                if(pendingBatches.get(batchKey) != this) return;
+                pendingBatches.remove(batchKey);
+            }
+            send();
+        }
+
+        void send() {
+            StringBuilder body = new StringBuilder(size).append('{');
+            String separator = "";
+            for(String keyedJson : objectJson.values()) {
+                body.append(separator).append(keyedJson);
+                separator = ",";
+            }
+            body.append('}');
+            requestQueue.add(new BaseObjectModificationRequest(Request.Method.POST, BaseObjectModificationRequest.ENDPOINT, body.toString(), sessionToken, apiCredentials, serverFunction,
+                    new Response.Listener<ObjectModificationResponse>() {
+                        @Override
+                        public void onResponse(ObjectModificationResponse response) {
+                            Map<String, ObjectModificationResponse> responses = responsesByObjectId;
+                            for(Map.Entry<String, Response.Listener<ObjectModificationResponse>> listener : successListeners) {
+                                ObjectModificationResponse own = responses == null ? null : responses.get(listener.getKey());
+                                listener.getValue().onResponse(own == null ? response : own);
+                            }
+                        }
+                    },
+                    new Response.ErrorListener() {
+                        @Override
+                        public void onErrorResponse(VolleyError error) {
+                            for(Response.ErrorListener listener : errorListeners) {
+                                listener.onErrorResponse(error);
+                            }
+                        }
+                    }) {
+                @Override
+                protected Response<ObjectModificationResponse> parseNetworkResponse(NetworkResponse networkResponse) {
+                    Response<ObjectModificationResponse> response = super.parseNetworkResponse(networkResponse);
+                    if(isSuccess(networkResponse) && !successListeners.isEmpty()) {
+                        try {
+                            responsesByObjectId = splitResponse(new String(networkResponse.data), objectJson.keySet(), networkResponse.statusCode);
+                        } catch (IOException e) {
+                            //the listeners get the whole response instead
+                            LOG.error("Unable to split batched save response", e);
+                        }
+                    }
+                    return response;
+                }
+            });
+        }
+    }
+}
@@ -16,6 +16,7 @@ public abstract class RequestBuilder<BUILDER_TYPE extends RequestBuilder, REQUES
     protected Response.ErrorListener errorListener;
     protected CMSessionToken sessionToken;
     protected CMServerFunction serverFunction;
+    protected CachePolicy cachePolicy;
 
     public RequestBuilder() {}
 
@@ -50,5 +51,21 @@ public abstract class RequestBuilder<BUILDER_TYPE extends RequestBuilder, REQUES
         return (BUILDER_TYPE) this;
     }
 
+    /**
+     * Set how the built request uses the response cache; see {@link CachePolicy}. Builders apply it in {@link #build()}
+     * with {@link #applyCachePolicy(CloudMineRequest)}
+     * @param cachePolicy
+     * @return
+     */
+    public BUILDER_TYPE cachePolicy(CachePolicy cachePolicy) {
+        this.cachePolicy = cachePolicy;
+        return (BUILDER_TYPE) this;
+    }
+
+    protected <REQUEST extends CloudMineRequest> REQUEST applyCachePolicy(REQUEST request) {
+        if(cachePolicy != null) request.setCachePolicy(cachePolicy);
+        return request;
+    }
+
     public abstract REQUEST_TYPE build();
 }
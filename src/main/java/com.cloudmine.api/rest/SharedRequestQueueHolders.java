@@ -17,26 +17,80 @@ import java.util.Map;
 import java.util.WeakHashMap;
 
 /**
+ * Holds the single, application wide RequestQueue that all CloudMine requests are run on. Each Context gets
+ * its own {@link ContextScopedRequestQueue} view of the shared queue, so requests started from a Context can be
+ * cancelled with {@link #cancelRequests(Context)} without every Activity paying for its own dispatcher threads,
+ * disk cache and connection pool.
  * <br>
  * Copyright CloudMine, Inc. All rights reserved<br>
  * See LICENSE file included with SDK for details.
  */
 public class SharedRequestQueueHolders {
     private static final String DEFAULT_CACHE_DIR = "volley";
-    //We can use this as the RequestQueue/DiskBasedCache do not keep a reference to the context. If that changes in the future rework will be needed
-    private static Map<Context, RequestQueue> queueMap = new WeakHashMap<Context, RequestQueue>();
+    private static final Object queueLock = new Object();
+    //The shared queue is created from the application context, so it never holds on to an Activity
+    private static RequestQueue sharedQueue;
+    //The scoped queues do not keep a reference to their context, so using it as a weak key is safe
+    private static Map<Context, ContextScopedRequestQueue> queueMap = new WeakHashMap<Context, ContextScopedRequestQueue>();
 
+    /**
+     * Get a RequestQueue for the given Context. All of the returned queues share the same dispatcher threads, cache
+     * and network stack; requests added through the returned queue are scoped to the given Context
+     * @param context
+     * @return
+     */
     public static RequestQueue getRequestQueue(Context context) {
-        RequestQueue queue = queueMap.get(context);
-        if(queue == null) {
-            queue = newRequestQueue(context, new OkHttpStack());
-            queueMap.put(context, queue);
+        synchronized (queueLock) {
+            ContextScopedRequestQueue queue = queueMap.get(context);
+            if(queue == null) {
+                queue = new ContextScopedRequestQueue(getSharedRequestQueue(context));
+                queueMap.put(context, queue);
+            }
+            return queue;
         }
-        return queue;
     }
 
     /**
-     * This code is copy/pasted out of Volley.java, so we can replace BasicNetwork with CMNetwork
+     * Get the application wide RequestQueue. Requests added directly to this queue are not scoped to any Context
+     * @param context any context; only its application context is retained
+     * @return
+     */
+    public static RequestQueue getSharedRequestQueue(Context context) {
+        synchronized (queueLock) {
+            if(sharedQueue == null) {
+                sharedQueue = newRequestQueue(context.getApplicationContext(), new OkHttpStack());
+            }
+            return sharedQueue;
+        }
+    }
+
+    /**
+     * Cancel all of the requests that were added through the RequestQueue for the given Context. Should be called
+     * when the Context is going away, for example from an Activity's onStop or onDestroy
+     * @param context
+     */
+    public static void cancelRequests(Context context) {
+        ContextScopedRequestQueue queue;
+        synchronized (queueLock) {
+            queue = queueMap.get(context);
+        }
+        if(queue != null) queue.cancelAllScoped();
+    }
+
+    /**
+     * Expire the shared queue's cached object loads that are affected by a save or delete sent outside of the queue,
+     * such as one queued with saveEventually
+     * @param context any context; only its application context is retained
+     * @param modificationResponse the body of the successful save or delete response
+     */
+    public static void objectsChanged(Context context, String modificationResponse) {
+        if(modificationResponse == null) return;
+        CachedObjectIndex.objectsChanged(getSharedRequestQueue(context).getCache(), modificationResponse.getBytes());
+    }
+
+    /**
+     * This code is copy/pasted out of Volley.java, so we can replace BasicNetwork with CMNetwork, and put a
+     * {@link TwoTierCache} in front of the DiskBasedCache so hot responses are served from memory
      * @param context
      * @param stack
      * @return
@@ -64,7 +118,7 @@ public class SharedRequestQueueHolders {
 
         Network network = new CMNetwork(stack);
 
-        RequestQueue queue = new RequestQueue(new DiskBasedCache(cacheDir), network);
+        RequestQueue queue = new RequestQueue(new TwoTierCache(new DiskBasedCache(cacheDir)), network);
         queue.start();
 
         return queue;
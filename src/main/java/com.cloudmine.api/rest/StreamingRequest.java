@@ -0,0 +1,26 @@
+package com.cloudmine.api.rest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * A request that wants to read its successful response directly off the connection, instead of having
+ * {@link CMNetwork} copy the whole body into memory first. The request is responsible for holding on to whatever
+ * it parsed so it can be returned from parseNetworkResponse; the NetworkResponse it is given will have an empty body.
+ * Since there is no body to store, streamed responses are not cached.
+ * <br>Copyright CloudMine, Inc. All rights reserved
+ * <br> See LICENSE file included with SDK for details.
+ */
+public interface StreamingRequest {
+
+    /**
+     * Called on the network thread with the content of a 2xx response. The stream is closed by the caller
+     * @param content the response body
+     * @param statusCode the HTTP status code
+     * @param headers the response headers
+     * @throws IOException if reading or parsing the stream fails. A JsonProcessingException, or any RuntimeException,
+     * is delivered to the error listener as a ParseError; other IOExceptions are treated as network failures
+     */
+    public void parseResponseStream(InputStream content, int statusCode, Map<String, String> headers) throws IOException;
+}
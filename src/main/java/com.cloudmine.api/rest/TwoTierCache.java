@@ -0,0 +1,275 @@
+package com.cloudmine.api.rest;
+
+import com.android.volley.Cache;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A Volley Cache that keeps recently used entries in memory, in front of a slower cache such as DiskBasedCache.
+ * Puts are written through to both tiers; entries found only in the slower tier are promoted into memory, so hot
+ * responses are served without touching flash. The memory tier is a least recently used map bounded by the
+ * approximate number of bytes it holds. Hit, miss and eviction counts are kept so the size can be tuned.<br>
+ * Reads from the slower tier happen outside of the lock, so every write to a key is stamped with a generation and
+ * marked as in progress while it reaches the slower tier. An entry read from the slower tier is only promoted if no
+ * write to its key started or finished during the read; otherwise it could bring back an entry that was just removed
+ * or invalidated.
+ * <br>
+ * Copyright CloudMine, Inc. All rights reserved<br>
+ * See LICENSE file included with SDK for details.
+ */
+public class TwoTierCache implements Cache {
+
+    public static final int DEFAULT_MAX_MEMORY_BYTES = 1024 * 1024;
+    //Entries bigger than this share of the memory tier are only stored in the slower tier
+    private static final int MAX_ENTRY_SHARE = 4;
+    //Rough per entry overhead of the key, the entry object and the map node
+    private static final int ENTRY_OVERHEAD_BYTES = 64;
+    //How many recently written keys remember their generation; older writes fall back to forgottenGeneration
+    private static final int MAX_TRACKED_WRITES = 1024;
+
+    private final Cache slowCache;
+    private final int maxMemoryBytes;
+    private final LinkedHashMap<String, Entry> memoryCache = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private int memoryBytes;
+    private long generation;
+    private long forgottenGeneration;
+    private final LinkedHashMap<String, Long> writeGenerations = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            if(size() <= MAX_TRACKED_WRITES) return false;
+            forgottenGeneration = Math.max(forgottenGeneration, eldest.getValue());
+            return true;
+        }
+    };
+    private final Map<String, Integer> writesInProgress = new HashMap<String, Integer>();
+    private int clearsInProgress;
+
+    private long memoryHits;
+    private long slowHits;
+    private long misses;
+    private long evictions;
+
+    public TwoTierCache(Cache slowCache) {
+        this(slowCache, DEFAULT_MAX_MEMORY_BYTES);
+    }
+
+    /**
+     * @param slowCache the cache that entries are written through to, and read from when they are not in memory
+     * @param maxMemoryBytes roughly how many bytes of entries to keep in memory
+     */
+    public TwoTierCache(Cache slowCache, int maxMemoryBytes) {
+        if(slowCache == null) throw new NullPointerException("slowCache cannot be null");
+        this.slowCache = slowCache;
+        this.maxMemoryBytes = maxMemoryBytes;
+    }
+
+    @Override
+    public Entry get(String key) {
+        long readGeneration;
+        synchronized (memoryCache) {
+            Entry entry = memoryCache.get(key);
+            if(entry != null) {
+                memoryHits++;
+                return entry;
+            }
+            readGeneration = generation;
+        }
+        Entry entry = slowCache.get(key);
+        synchronized (memoryCache) {
+            if(entry == null) {
+                misses++;
+            } else {
+                slowHits++;
+                if(!memoryCache.containsKey(key) && !isWrittenSince(key, readGeneration)) putInMemory(key, entry);
+            }
+        }
+        return entry;
+    }
+
+    @Override
+    public void put(String key, Entry entry) {
+        synchronized (memoryCache) {
+            startWrite(key);
+            putInMemory(key, entry);
+        }
+        try {
+            slowCache.put(key, entry);
+        } finally {
+            finishWrite(key);
+        }
+    }
+
+    @Override
+    public void initialize() {
+        slowCache.initialize();
+    }
+
+    @Override
+    public void invalidate(String key, boolean fullExpire) {
+        synchronized (memoryCache) {
+            startWrite(key);
+            Entry entry = memoryCache.get(key);
+            if(entry != null) {
+                entry.softTtl = 0;
+                if(fullExpire) entry.ttl = 0;
+            }
+        }
+        try {
+            slowCache.invalidate(key, fullExpire);
+        } finally {
+            finishWrite(key);
+        }
+    }
+
+    @Override
+    public void remove(String key) {
+        synchronized (memoryCache) {
+            startWrite(key);
+            removeFromMemory(key);
+        }
+        try {
+            slowCache.remove(key);
+        } finally {
+            finishWrite(key);
+        }
+    }
+
+    @Override
+    public void clear() {
+        synchronized (memoryCache) {
+            clearsInProgress++;
+            forgottenGeneration = ++generation;
+            writeGenerations.clear();
+            memoryCache.clear();
+            memoryBytes = 0;
+        }
+        try {
+            slowCache.clear();
+        } finally {
+            synchronized (memoryCache) {
+                clearsInProgress--;
+                forgottenGeneration = ++generation;
+            }
+        }
+    }
+
+    /**
+     * Must be called while holding the memoryCache lock
+     */
+    private void startWrite(String key) {
+        writeGenerations.put(key, ++generation);
+        Integer inProgress = writesInProgress.get(key);
+        writesInProgress.put(key, inProgress == null ? 1 : inProgress + 1);
+    }
+
+    private void finishWrite(String key) {
+        synchronized (memoryCache) {
+            writeGenerations.put(key, ++generation);
+            int inProgress = writesInProgress.get(key) - 1;
+            if(inProgress == 0) writesInProgress.remove(key);
+            else                writesInProgress.put(key, inProgress);
+        }
+    }
+
+    /**
+     * Must be called while holding the memoryCache lock
+     * @return true if a write to the key is in progress, or one started or finished after the given generation
+     */
+    private boolean isWrittenSince(String key, long readGeneration) {
+        if(clearsInProgress > 0 || writesInProgress.containsKey(key)) return true;
+        Long written = writeGenerations.get(key);
+        return (written != null ? written : forgottenGeneration) > readGeneration;
+    }
+
+    /**
+     * Must be called while holding the memoryCache lock
+     */
+    private void putInMemory(String key, Entry entry) {
+        removeFromMemory(key);
+        int size = sizeOf(key, entry);
+        if(size > maxMemoryBytes / MAX_ENTRY_SHARE) return;
+        memoryCache.put(key, entry);
+        memoryBytes += size;
+        Iterator<Map.Entry<String, Entry>> eldest = memoryCache.entrySet().iterator();
+        while(memoryBytes > maxMemoryBytes && eldest.hasNext()) {
+            Map.Entry<String, Entry> evicted = eldest.next();
+            eldest.remove();
+            memoryBytes -= sizeOf(evicted.getKey(), evicted.getValue());
+            evictions++;
+        }
+    }
+
+    private void removeFromMemory(String key) {
+        Entry removed = memoryCache.remove(key);
+        if(removed != null) memoryBytes -= sizeOf(key, removed);
+    }
+
+    private static int sizeOf(String key, Entry entry) {
+        int size = ENTRY_OVERHEAD_BYTES + key.length() * 2;
+        if(entry.data != null) size += entry.data.length;
+        if(entry.etag != null) size += entry.etag.length() * 2;
+        if(entry.responseHeaders != null) {
+            for(Map.Entry<String, String> header : entry.responseHeaders.entrySet()) {
+                size += (header.getKey().length() + (header.getValue() == null ? 0 : header.getValue().length())) * 2;
+            }
+        }
+        return size;
+    }
+
+    public int getMaxMemoryBytes() {
+        return maxMemoryBytes;
+    }
+
+    public int getMemoryBytes() {
+        synchronized (memoryCache) {
+            return memoryBytes;
+        }
+    }
+
+    /**
+     * @return how many gets were answered from memory
+     */
+    public long getMemoryHitCount() {
+        synchronized (memoryCache) {
+            return memoryHits;
+        }
+    }
+
+    /**
+     * @return how many gets missed memory but were answered by the slower cache
+     */
+    public long getSlowHitCount() {
+        synchronized (memoryCache) {
+            return slowHits;
+        }
+    }
+
+    /**
+     * @return how many gets found nothing in either tier
+     */
+    public long getMissCount() {
+        synchronized (memoryCache) {
+            return misses;
+        }
+    }
+
+    /**
+     * @return how many entries were dropped from memory to make room; they are still in the slower cache
+     */
+    public long getEvictionCount() {
+        synchronized (memoryCache) {
+            return evictions;
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (memoryCache) {
+            return "TwoTierCache{memoryBytes=" + memoryBytes + "/" + maxMemoryBytes + ", memoryHits=" + memoryHits +
+                    ", slowHits=" + slowHits + ", misses=" + misses + ", evictions=" + evictions + "}";
+        }
+    }
+}
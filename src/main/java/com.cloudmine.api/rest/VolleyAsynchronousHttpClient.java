@@ -7,7 +7,6 @@ import com.android.volley.Request;
 import com.android.volley.RequestQueue;
 import com.android.volley.Response;
 import com.android.volley.VolleyError;
-import com.android.volley.toolbox.Volley;
 import com.cloudmine.api.rest.callbacks.Callback;
 import com.cloudmine.api.rest.response.ResponseConstructor;
 import org.apache.http.Header;
@@ -29,7 +28,7 @@ public class VolleyAsynchronousHttpClient implements AsynchronousHttpClient {
     private RequestQueue queue;
 
     public VolleyAsynchronousHttpClient(Context context) {
-        queue = Volley.newRequestQueue(context, new OkHttpStack());
+        queue = SharedRequestQueueHolders.getSharedRequestQueue(context);
     }
 
 
@@ -0,0 +1,101 @@
+package com.cloudmine.api.rest.response;
+
+import com.cloudmine.api.CMObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The result of an object load whose body was parsed as it came off the network. Unlike {@link CMObjectResponse}
+ * the raw response body is never held in memory; only the objects that were built from it are kept.
+ * <br>Copyright CloudMine, Inc. All rights reserved
+ * <br> See LICENSE file included with SDK for details.
+ */
+public class StreamedCMObjectResponse {
+
+    private final Map<String, CMObject> objects;
+    private final Map<String, String> errors;
+    private final int count;
+    private final int statusCode;
+
+    public StreamedCMObjectResponse(Map<String, CMObject> objects, Map<String, String> errors, int count, int statusCode) {
+        this.objects = objects == null ?
+                new LinkedHashMap<String, CMObject>() :
+                objects;
+        this.errors = errors == null ?
+                new LinkedHashMap<String, String>() :
+                errors;
+        this.count = count;
+        this.statusCode = statusCode;
+    }
+
+    /**
+     * Get all of the objects that were loaded, in the order the server returned them
+     * @return
+     */
+    public List<CMObject> getObjects() {
+        return new ArrayList<CMObject>(objects.values());
+    }
+
+    /**
+     * Get the loaded objects that are instances of the given class
+     * @param klass
+     * @param <CMO>
+     * @return
+     */
+    public <CMO extends CMObject> List<CMO> getObjects(Class<CMO> klass) {
+        List<CMO> matching = new ArrayList<CMO>();
+        for(CMObject object : objects.values()) {
+            if(klass.isInstance(object)) matching.add(klass.cast(object));
+        }
+        return matching;
+    }
+
+    public Map<String, CMObject> getObjectMap() {
+        return Collections.unmodifiableMap(objects);
+    }
+
+    /**
+     * Get the object with the given id, or null if it was not loaded
+     * @param objectId
+     * @return
+     */
+    public CMObject getCMObject(String objectId) {
+        return objects.get(objectId);
+    }
+
+    /**
+     * Get the errors returned by the server, as a map from the key the error applies to, to the JSON representation of the error
+     * @return
+     */
+    public Map<String, String> getErrors() {
+        return Collections.unmodifiableMap(errors);
+    }
+
+    /**
+     * The count returned by the server, if it was requested; otherwise the number of objects loaded
+     * @return
+     */
+    public int getCount() {
+        return count;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public boolean hasSuccess() {
+        return !objects.isEmpty();
+    }
+
+    public boolean hasErrors() {
+        return !errors.isEmpty();
+    }
+
+    public boolean wasSuccess() {
+        return 199 < statusCode && statusCode < 300;
+    }
+}
@@ -15,6 +15,8 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
@@ -95,6 +97,200 @@ public class LocallySavableCMObjectTest extends ServiceTestBase {
         assertNull(loadedObject);
     }
 
+    @Test
+    public void testSaveLocallyCollection() {
+        Context context = Robolectric.application.getApplicationContext();
+        List<ExtendedLocallySavableCMObject> objects = new ArrayList<ExtendedLocallySavableCMObject>();
+        for(int i = 0; i < 5; i++) {
+            objects.add(new ExtendedLocallySavableCMObject("Francis" + i, true, null, i));
+        }
+        assertTrue(BaseLocallySavableCMObject.saveLocally(context, objects));
+
+        for(ExtendedLocallySavableCMObject object : objects) {
+            ExtendedLocallySavableCMObject loadedObject = BaseLocallySavableCMObject.loadLocalObject(context, object.getObjectId());
+            assertEquals(object, loadedObject);
+        }
+    }
+
+    @Test
+    public void testCompressedLocalObjects() {
+        Context context = Robolectric.application.getApplicationContext();
+        ExtendedLocallySavableCMObject plain = new ExtendedLocallySavableCMObject("plain", true, null, 1);
+        assertTrue(plain.saveLocally(context));
+
+        CMObjectDBOpenHelper.setCompressStoredObjects(true);
+        try {
+            ExtendedLocallySavableCMObject compressed = new ExtendedLocallySavableCMObject("compressed", false, null, 2);
+            assertTrue(compressed.saveLocally(context));
+            CMObjectDBOpenHelper.getCMObjectDBHelper(context).rewriteStoredObjects();
+
+            List<ExtendedLocallySavableCMObject> loaded = BaseLocallySavableCMObject.loadLocalObjectsByClass(context, ExtendedLocallySavableCMObject.class);
+            assertTrue(loaded.containsAll(Arrays.asList(plain, compressed)));
+            assertEquals(1, BaseLocallySavableCMObject.searchLocalObjects(context, "[name = \"compressed\"]").size());
+        } finally {
+            CMObjectDBOpenHelper.setCompressStoredObjects(false);
+        }
+    }
+
+    @Test
+    public void testLoadLocalObjectReturnsCopies() {
+        Context context = Robolectric.application.getApplicationContext();
+        ExtendedLocallySavableCMObject savableCMObject = new ExtendedLocallySavableCMObject("Francis", true, null, 1000);
+        assertTrue(savableCMObject.saveLocally(context));
+
+        ExtendedLocallySavableCMObject firstLoad = BaseLocallySavableCMObject.loadLocalObject(context, savableCMObject.getObjectId());
+        firstLoad.setName("Changed but not saved");
+        ExtendedLocallySavableCMObject secondLoad = BaseLocallySavableCMObject.loadLocalObject(context, savableCMObject.getObjectId());
+        assertNotSame(firstLoad, secondLoad);
+        assertEquals(savableCMObject, secondLoad);
+
+        savableCMObject.deleteLocally(context);
+        assertNull(BaseLocallySavableCMObject.loadLocalObject(context, savableCMObject.getObjectId()));
+    }
+
+    @Test
+    public void testLocalObjectCacheIgnoresReadsOlderThanDelete() {
+        LocalObjectCache cache = new LocalObjectCache();
+        ExtendedLocallySavableCMObject savableCMObject = new ExtendedLocallySavableCMObject("Francis", true, null, 1000);
+        String objectId = savableCMObject.getObjectId();
+        cache.putJson(objectId, savableCMObject.transportableRepresentation());
+
+        //a load reads the row, then a delete runs before the load caches what it read
+        long readGeneration = cache.generation();
+        cache.remove(objectId);
+        cache.putRead(objectId, savableCMObject.transportableRepresentation(), readGeneration);
+        assertNull(cache.get(objectId));
+
+        //a load that starts after the delete is free to cache
+        readGeneration = cache.generation();
+        cache.putRead(objectId, savableCMObject.transportableRepresentation(), readGeneration);
+        assertEquals(savableCMObject, cache.get(objectId));
+    }
+
+    @Test
+    public void testLocalObjectCacheDeletesDontEvictObjects() {
+        LocalObjectCache cache = new LocalObjectCache(1);
+        ExtendedLocallySavableCMObject savableCMObject = new ExtendedLocallySavableCMObject("Francis", true, null, 1000);
+        cache.putJson(savableCMObject.getObjectId(), savableCMObject.transportableRepresentation());
+        cache.remove("deleted");
+        cache.remove("alsoDeleted");
+        assertEquals(savableCMObject, cache.get(savableCMObject.getObjectId()));
+    }
+
+    @Test
+    public void testLoadLocalObjectsLazily() {
+        Context context = Robolectric.application.getApplicationContext();
+        List<ExtendedLocallySavableCMObject> objects = new ArrayList<ExtendedLocallySavableCMObject>();
+        for(int i = 0; i < 5; i++) {
+            objects.add(new ExtendedLocallySavableCMObject("Francis" + i, true, null, i));
+        }
+        assertTrue(BaseLocallySavableCMObject.saveLocally(context, objects));
+
+        LocalObjectCursorList<ExtendedLocallySavableCMObject> loaded = BaseLocallySavableCMObject.loadLocalObjectsByClassLazily(context, ExtendedLocallySavableCMObject.class);
+        try {
+            assertEquals(objects.size(), loaded.size());
+            assertTrue(loaded.containsAll(objects));
+        } finally {
+            loaded.close();
+        }
+        assertTrue(loaded.isClosed());
+    }
+
+    @Test
+    public void testLoadLocalObjectsByIds() {
+        Context context = Robolectric.application.getApplicationContext();
+        List<ExtendedLocallySavableCMObject> objects = new ArrayList<ExtendedLocallySavableCMObject>();
+        List<String> objectIds = new ArrayList<String>();
+        //more ids than SQLite allows parameters in one statement
+        for(int i = 0; i < 1100; i++) {
+            ExtendedLocallySavableCMObject object = new ExtendedLocallySavableCMObject("Francis" + i, true, null, i);
+            objects.add(object);
+            objectIds.add(object.getObjectId());
+        }
+        assertTrue(BaseLocallySavableCMObject.saveLocally(context, objects));
+        objectIds.add("not\"stored");
+
+        List<ExtendedLocallySavableCMObject> loaded = BaseLocallySavableCMObject.loadLocalObjects(context, objectIds);
+        assertEquals(objects.size(), loaded.size());
+        assertTrue(loaded.containsAll(objects));
+    }
+
+    @Test
+    public void testSearchLocalObjects() {
+        Context context = Robolectric.application.getApplicationContext();
+        ExtendedLocallySavableCMObject bob = new ExtendedLocallySavableCMObject("bob", true, null, 3);
+        ExtendedLocallySavableCMObject fred = new ExtendedLocallySavableCMObject("fred", false, null, 10);
+        assertTrue(BaseLocallySavableCMObject.saveLocally(context, Arrays.asList(bob, fred)));
+
+        List<ExtendedLocallySavableCMObject> found = BaseLocallySavableCMObject.searchLocalObjects(context, "[name = \"bob\"]");
+        assertEquals(1, found.size());
+        assertEquals(bob, found.get(0));
+
+        found = BaseLocallySavableCMObject.searchLocalObjects(context, "[numberOfHighFives > 5]");
+        assertEquals(1, found.size());
+        assertEquals(fred, found.get(0));
+
+        found = BaseLocallySavableCMObject.searchLocalObjects(context, "[name in [\"bob\", \"fred\"], numberOfHighFives <= 10]");
+        assertEquals(2, found.size());
+
+        BaseLocallySavableCMObject.deleteLocalObject(context, bob.getObjectId());
+        assertTrue(BaseLocallySavableCMObject.searchLocalObjects(context, "[name = \"bob\"]").isEmpty());
+    }
+
+    @Test
+    public void testLoadLocalObjectsNear() {
+        Context context = Robolectric.application.getApplicationContext();
+        LocallySavableCMGeoPoint philadelphia = new LocallySavableCMGeoPoint(-75.1652, 39.9526);
+        LocallySavableCMGeoPoint camden = new LocallySavableCMGeoPoint(-75.1196, 39.9259);
+        LocallySavableCMGeoPoint newYork = new LocallySavableCMGeoPoint(-74.0060, 40.7128);
+        assertTrue(BaseLocallySavableCMObject.saveLocally(context, Arrays.asList(newYork, camden, philadelphia)));
+
+        List<LocallySavableCMGeoPoint> near = BaseLocallySavableCMObject.loadLocalObjectsNear(context, 39.9526, -75.1652, 10, 0);
+        assertEquals(Arrays.asList(philadelphia, camden), near);
+
+        near = BaseLocallySavableCMObject.loadLocalObjectsNear(context, 39.9526, -75.1652, 200, 1);
+        assertEquals(Arrays.asList(philadelphia), near);
+
+        List<LocallySavableCMGeoPoint> within = BaseLocallySavableCMObject.loadLocalObjectsWithin(context, 40, -75, 41, -73, 0);
+        assertEquals(Arrays.asList(newYork), within);
+
+        BaseLocallySavableCMObject.deleteLocalObject(context, camden.getObjectId());
+        near = BaseLocallySavableCMObject.loadLocalObjectsNear(context, 39.9526, -75.1652, 10, 0);
+        assertEquals(Arrays.asList(philadelphia), near);
+    }
+
+    @Test
+    public void testSearchLocalText() {
+        Context context = Robolectric.application.getApplicationContext();
+        CMObjectDBOpenHelper dbHelper = CMObjectDBOpenHelper.getCMObjectDBHelper(context);
+        //FTS3 depends on the SQLite build; without it, text search is disabled rather than broken
+        if(!dbHelper.isTextSearchAvailable()) return;
+        ExtendedLocallySavableCMObject tea = new ExtendedLocallySavableCMObject("green tea", true, null, 1);
+        assertTrue(tea.saveLocally(context));
+
+        //objects stored before text search was enabled are indexed once
+        String className = ClassNameRegistry.forClass(ExtendedLocallySavableCMObject.class);
+        CMObjectDBOpenHelper.enableTextSearch(className);
+        assertEquals(1, dbHelper.indexClassForTextSearch(className));
+        assertEquals(0, dbHelper.indexClassForTextSearch(className));
+        assertEquals(Arrays.asList(tea.getObjectId()), BaseLocallySavableCMObject.searchLocalText(context, "tea", 0));
+
+        //later saves are indexed as they happen, and objects with more hits come first
+        ExtendedLocallySavableCMObject coffee = new ExtendedLocallySavableCMObject("coffee", true, null, 2);
+        ExtendedLocallySavableCMObject moreCoffee = new ExtendedLocallySavableCMObject("coffee coffee shop", true,
+                new ExtendedCMObject("coffee", new Date(), 3), 3);
+        assertTrue(BaseLocallySavableCMObject.saveLocally(context, Arrays.asList(coffee, moreCoffee)));
+        assertEquals(Arrays.asList(moreCoffee.getObjectId(), coffee.getObjectId()), BaseLocallySavableCMObject.searchLocalText(context, "coffee", 0));
+        assertEquals(Arrays.asList(moreCoffee.getObjectId()), BaseLocallySavableCMObject.searchLocalText(context, "coffee", 1));
+
+        BaseLocallySavableCMObject.deleteLocalObject(context, moreCoffee.getObjectId());
+        assertEquals(Arrays.asList(coffee.getObjectId()), BaseLocallySavableCMObject.searchLocalText(context, "coffee", 0));
+
+        //queries the FTS3 parser rejects, such as unbalanced parentheses where they are supported, don't throw
+        assertNotNull(BaseLocallySavableCMObject.searchLocalText(context, "(coffee OR", 0));
+        assertNotNull(BaseLocallySavableCMObject.searchLocalText(context, "\"coffee", 0));
+    }
+
     @Test
     public void testSaveEventually() throws InterruptedException {
         Context context = Robolectric.application.getApplicationContext();
@@ -109,4 +305,38 @@ public class LocallySavableCMObjectTest extends ServiceTestBase {
         RequestDBObject saveRequest = unsentRequests.values().iterator().next();
         assertTrue(JsonUtilities.isJsonEquivalent(savableCMObject.transportableRepresentation(), saveRequest.getJsonBody()));
     }
+
+    @Test
+    public void testSaveEventuallyCoalescesRepeatedSaves() {
+        Context context = Robolectric.application.getApplicationContext();
+        ExtendedLocallySavableCMObject savableCMObject = new ExtendedLocallySavableCMObject("Francis", true, null, 1000);
+
+        assertTrue(savableCMObject.saveEventually(context));
+        savableCMObject.setAwesome(false);
+        assertTrue(savableCMObject.saveEventually(context));
+
+        RequestDBOpenHelper openHelper = RequestDBOpenHelper.getRequestDBOpenHelper(context);
+        Map<Integer, RequestDBObject> unsentRequests = openHelper.retrieveRequestsForSending(context);
+        assertEquals(1, unsentRequests.size());
+        RequestDBObject saveRequest = unsentRequests.values().iterator().next();
+        assertTrue(JsonUtilities.isJsonEquivalent(savableCMObject.transportableRepresentation(), saveRequest.getJsonBody()));
+    }
+
+    @Test
+    public void testRetrieveRequestsForSendingByPage() {
+        Context context = Robolectric.application.getApplicationContext();
+        for(int i = 0; i < 3; i++) {
+            assertTrue(new ExtendedLocallySavableCMObject("Francis" + i, true, null, i).saveEventually(context));
+        }
+
+        RequestDBOpenHelper openHelper = RequestDBOpenHelper.getRequestDBOpenHelper(context);
+        Map<Integer, RequestDBObject> firstPage = openHelper.retrieveRequestsForSending(context, 2);
+        assertEquals(2, firstPage.size());
+        assertTrue(openHelper.hasUnsynchronizedRequests());
+
+        Map<Integer, RequestDBObject> secondPage = openHelper.retrieveRequestsForSending(context, 2);
+        assertEquals(1, secondPage.size());
+        assertFalse(firstPage.keySet().containsAll(secondPage.keySet()));
+        assertFalse(openHelper.hasUnsynchronizedRequests());
+    }
 }
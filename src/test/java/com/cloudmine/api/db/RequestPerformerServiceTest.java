@@ -0,0 +1,134 @@
+package com.cloudmine.api.db;
+
+import android.content.Context;
+import android.database.Cursor;
+import com.cloudmine.api.DeviceIdentifier;
+import com.cloudmine.test.CloudMineTestRunner;
+import com.cloudmine.test.ExtendedLocallySavableCMObject;
+import com.cloudmine.test.ServiceTestBase;
+import com.xtremelabs.robolectric.Robolectric;
+import org.apache.http.Header;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static junit.framework.Assert.*;
+
+/**
+ * <br>
+ * Copyright CloudMine, Inc. All rights reserved<br>
+ * See LICENSE file included with SDK for details.
+ */
+@RunWith(CloudMineTestRunner.class)
+public class RequestPerformerServiceTest extends ServiceTestBase {
+
+    private RequestPerformerService service;
+    private RequestDBOpenHelper openHelper;
+
+    @Before
+    public void setUp() {
+        Robolectric.getFakeHttpLayer().interceptHttpRequests(true);
+        DeviceIdentifier.initialize(Robolectric.application.getApplicationContext());
+        super.setUp();
+        service = new RequestPerformerService();
+        service.onCreate();
+        openHelper = RequestDBOpenHelper.getRequestDBOpenHelper(Robolectric.application.getApplicationContext());
+    }
+
+    @After
+    public void tearDown() {
+        service.onDestroy();
+        Robolectric.getFakeHttpLayer().interceptHttpRequests(false);
+    }
+
+    @Test
+    public void testRemoveBatchesSkipsObjectsWithSeveralRequests() {
+        Map<Integer, RequestDBObject> requests = new LinkedHashMap<Integer, RequestDBObject>();
+        requests.put(1, saveRequest("first", 1));
+        requests.put(2, saveRequest("repeated", 2));
+        requests.put(3, saveRequest("repeated", 3));
+        requests.put(4, saveRequest("second", 4));
+
+        List<List<Map.Entry<Integer, RequestDBObject>>> batches = RequestPerformerService.removeBatches(requests);
+        assertEquals(1, batches.size());
+        List<Integer> batchedIds = new ArrayList<Integer>();
+        for(Map.Entry<Integer, RequestDBObject> entry : batches.get(0)) {
+            batchedIds.add(entry.getKey());
+        }
+        assertEquals(2, batchedIds.size());
+        assertTrue(batchedIds.contains(1) && batchedIds.contains(4));
+        //both requests for the repeated object are left to be sent in order
+        assertEquals(2, requests.size());
+        assertTrue(requests.containsKey(2) && requests.containsKey(3));
+    }
+
+    @Test
+    public void testSendBatchMapsResultsPerObject() {
+        List<Map.Entry<Integer, RequestDBObject>> batch = queueSaves("accepted", "alsoAccepted", "rejected");
+        Robolectric.addPendingHttpResponse(200, "{\"success\":{\"" + objectId(batch, 0) + "\":\"updated\",\"" +
+                objectId(batch, 1) + "\":\"created\"},\"errors\":{\"" + objectId(batch, 2) + "\":\"invalid\"}}");
+
+        assertTrue(service.sendBatch(batch));
+        assertEquals(1, Robolectric.getFakeHttpLayer().getSentHttpRequestInfos().size());
+        assertEquals(RequestDBOpenHelper.SYNCHRONIZED.intValue(), syncStatus(batch.get(0).getKey()));
+        assertEquals(RequestDBOpenHelper.SYNCHRONIZED.intValue(), syncStatus(batch.get(1).getKey()));
+        assertEquals(RequestDBOpenHelper.PERMANENTLY_FAILED, syncStatus(batch.get(2).getKey()));
+    }
+
+    @Test
+    public void testRejectedBatchIsSentIndividually() {
+        List<Map.Entry<Integer, RequestDBObject>> batch = queueSaves("first", "second");
+        Robolectric.addPendingHttpResponse(400, "{\"errors\":[\"bad request\"]}");
+        Robolectric.addPendingHttpResponse(200, "{\"success\":{\"" + objectId(batch, 0) + "\":\"updated\"},\"errors\":{}}");
+        Robolectric.addPendingHttpResponse(200, "{\"success\":{\"" + objectId(batch, 1) + "\":\"updated\"},\"errors\":{}}");
+
+        assertTrue(service.sendBatch(batch));
+        assertEquals(3, Robolectric.getFakeHttpLayer().getSentHttpRequestInfos().size());
+        for(Map.Entry<Integer, RequestDBObject> entry : batch) {
+            assertEquals(RequestDBOpenHelper.SYNCHRONIZED.intValue(), syncStatus(entry.getKey()));
+        }
+    }
+
+    private static RequestDBObject saveRequest(String objectId, int id) {
+        return new RequestDBObject("https://api.cloudmine.me/v1/app/test/text", RequestDBObject.Verb.PUT,
+                "{\"" + objectId + "\":{\"name\":\"" + objectId + "\"}}", objectId, id, RequestDBObject.SyncStatus.UNSYNCED,
+                new ArrayList<Header>());
+    }
+
+    /**
+     * Queue a save of a new object for each name, and claim the requests as a drain would
+     */
+    private List<Map.Entry<Integer, RequestDBObject>> queueSaves(String... names) {
+        Context context = Robolectric.application.getApplicationContext();
+        for(String name : names) {
+            assertTrue(new ExtendedLocallySavableCMObject(name, true, null, 1).saveEventually(context));
+        }
+        Map<Integer, RequestDBObject> claimed = openHelper.retrieveRequestsForSending(context);
+        List<List<Map.Entry<Integer, RequestDBObject>>> batches = RequestPerformerService.removeBatches(claimed);
+        assertEquals(1, batches.size());
+        assertEquals(names.length, batches.get(0).size());
+        return batches.get(0);
+    }
+
+    private static String objectId(List<Map.Entry<Integer, RequestDBObject>> batch, int index) {
+        return batch.get(index).getValue().getObjectId();
+    }
+
+    private int syncStatus(Integer requestId) {
+        Cursor cursor = openHelper.getReadableDatabase().query(RequestDBOpenHelper.REQUEST_DATABASE_TABLE,
+                new String[]{RequestDBOpenHelper.KEY_REQUEST_SYNCHRONIZED}, RequestDBOpenHelper.KEY_REQUEST_ID + "=?",
+                new String[]{requestId.toString()}, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.cloudmine.api.rest;
+
+import com.android.volley.ParseError;
+import com.android.volley.Request;
+import com.android.volley.VolleyError;
+import com.android.volley.toolbox.HttpStack;
+import com.cloudmine.api.CMApiCredentials;
+import com.cloudmine.test.CloudMineTestRunner;
+import com.xtremelabs.robolectric.Robolectric;
+import org.apache.http.HttpResponse;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.Map;
+
+import static junit.framework.Assert.fail;
+
+/**
+ * <br>
+ * Copyright CloudMine, Inc. All rights reserved<br>
+ * See LICENSE file included with SDK for details.
+ */
+@RunWith(CloudMineTestRunner.class)
+public class CMNetworkTest {
+
+    @Test
+    public void testMalformedStreamedBodyIsAParseError() {
+        CMApiCredentials.initialize("testAppId", "testApiKey", Robolectric.application);
+        CMNetwork network = new CMNetwork(new HttpStack() {
+            @Override
+            public HttpResponse performRequest(Request<?> request, Map<String, String> additionalHeaders) throws IOException {
+                BasicHttpResponse response = new BasicHttpResponse(new BasicStatusLine(new ProtocolVersion("HTTP", 1, 1), 200, "OK"));
+                response.setEntity(new StringEntity("not json"));
+                return response;
+            }
+        });
+        try {
+            network.performRequest(new BaseStreamingObjectLoadRequest(null, null, null, null, null));
+            fail();
+        } catch (ParseError expected) {
+        } catch (VolleyError e) {
+            fail("Expected a ParseError, got " + e);
+        }
+    }
+}
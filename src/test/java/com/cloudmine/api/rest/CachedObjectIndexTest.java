@@ -0,0 +1,111 @@
+package com.cloudmine.api.rest;
+
+import com.android.volley.Cache;
+import com.android.volley.NetworkResponse;
+import com.android.volley.RequestQueue;
+import com.cloudmine.api.CMApiCredentials;
+import com.cloudmine.test.CloudMineTestRunner;
+import com.cloudmine.test.MemoryCache;
+import com.xtremelabs.robolectric.Robolectric;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * <br>
+ * Copyright CloudMine, Inc. All rights reserved<br>
+ * See LICENSE file included with SDK for details.
+ */
+@RunWith(CloudMineTestRunner.class)
+public class CachedObjectIndexTest {
+
+    private static Cache.Entry cache(Cache cache, String key, String json) {
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = json.getBytes();
+        entry.softTtl = Long.MAX_VALUE;
+        entry.ttl = Long.MAX_VALUE;
+        cache.put(key, entry);
+        return entry;
+    }
+
+    private static BaseObjectLoadRequest newLoad(Cache cache) {
+        BaseObjectLoadRequest load = new BaseObjectLoadRequest(Arrays.asList("id1"), null, null, null, null);
+        load.setCachePolicy(CachePolicy.CACHE_FIRST);
+        load.setRequestQueue(new RequestQueue(cache, null));
+        return load;
+    }
+
+    @Test
+    public void testWritesExpireAffectedLoads() {
+        MemoryCache cache = new MemoryCache();
+        Cache.Entry allObjects = cache(cache, "all", "{\"success\":{\"id1\":{\"name\":\"bob\"},\"id2\":{\"name\":\"fred\"}},\"errors\":{}}");
+        Cache.Entry bob = cache(cache, "bob", "{\"success\":{\"id1\":{\"name\":\"bob\"}},\"errors\":{}}");
+        CachedObjectIndex.recordLoad(cache, "all", allObjects.data, false);
+        CachedObjectIndex.recordLoad(cache, "bob", bob.data, true);
+
+        CachedObjectIndex.objectsChanged(cache, "{\"success\":{\"id2\":\"updated\"},\"errors\":{}}".getBytes());
+        assertTrue(cache.get("all").isExpired());
+        assertFalse(cache.get("bob").isExpired());
+
+        CachedObjectIndex.objectsChanged(cache, "{\"success\":{\"id1\":\"deleted\"},\"errors\":{}}".getBytes());
+        assertTrue(cache.get("bob").isExpired());
+    }
+
+    @Test
+    public void testDroppedLoadsAreExpired() {
+        MemoryCache cache = new MemoryCache();
+        Cache.Entry first = cache(cache, "first", "{\"success\":{\"first\":{}},\"errors\":{}}");
+        CachedObjectIndex.recordLoad(cache, "first", first.data, true);
+        for(int i = 0; i < CachedObjectIndex.MAX_RECORDED_LOADS; i++) {
+            Cache.Entry entry = cache(cache, "load" + i, "{\"success\":{\"id" + i + "\":{}},\"errors\":{}}");
+            CachedObjectIndex.recordLoad(cache, "load" + i, entry.data, true);
+        }
+        assertEquals(CachedObjectIndex.MAX_RECORDED_LOADS, CachedObjectIndex.recordedLoadCount());
+        //no longer in the index, so it can't be expired by writes; it is revalidated instead of served
+        assertTrue(cache.get("first").isExpired());
+        assertFalse(cache.get("load0").isExpired());
+
+        CachedObjectIndex.objectsChanged(cache, "{\"success\":{\"id0\":\"updated\"},\"errors\":{}}".getBytes());
+        assertTrue(cache.get("load0").isExpired());
+        assertFalse(cache.get("load1").isExpired());
+    }
+
+    @Test
+    public void testWritesAreStampedForLoadsInFlight() {
+        long started = CachedObjectIndex.generation();
+        CachedObjectIndex.objectsChanged(null, "{\"success\":{\"id1\":\"updated\"},\"errors\":{}}".getBytes());
+        assertTrue(CachedObjectIndex.isChangedSince(started, Arrays.asList("id1")));
+        assertFalse(CachedObjectIndex.isChangedSince(started, Arrays.asList("id2")));
+        assertTrue(CachedObjectIndex.isChangedSince(started, null));
+        assertFalse(CachedObjectIndex.isChangedSince(CachedObjectIndex.generation(), null));
+
+        started = CachedObjectIndex.generation();
+        CachedObjectIndex.allObjectsChanged(null);
+        assertTrue(CachedObjectIndex.isChangedSince(started, Arrays.asList("id2")));
+    }
+
+    @Test
+    public void testLoadStartedBeforeAWriteIsNotCached() {
+        CMApiCredentials.initialize("testAppId", "testApiKey", Robolectric.application);
+        MemoryCache cache = new MemoryCache();
+        BaseObjectLoadRequest load = newLoad(cache);
+        CachedObjectIndex.objectsChanged(cache, "{\"success\":{\"id1\":\"updated\"},\"errors\":{}}".getBytes());
+
+        byte[] readBeforeTheWrite = "{\"success\":{\"id1\":{\"name\":\"bob\"}},\"errors\":{}}".getBytes();
+        assertNull(load.parseNetworkResponse(new NetworkResponse(readBeforeTheWrite)).cacheEntry);
+
+        //parsed before the write, but cached by the dispatcher after the write expired the key
+        BaseObjectLoadRequest raced = newLoad(cache);
+        Cache.Entry entry = raced.parseNetworkResponse(new NetworkResponse(readBeforeTheWrite)).cacheEntry;
+        CachedObjectIndex.objectsChanged(cache, "{\"success\":{\"id1\":\"updated\"},\"errors\":{}}".getBytes());
+        cache.put(raced.getCacheKey(), entry);
+        raced.markDelivered();
+        assertTrue(cache.get(raced.getCacheKey()).isExpired());
+    }
+}
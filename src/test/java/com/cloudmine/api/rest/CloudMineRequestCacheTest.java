@@ -0,0 +1,157 @@
+package com.cloudmine.api.rest;
+
+import com.android.volley.Cache;
+import com.android.volley.NetworkResponse;
+import com.android.volley.RequestQueue;
+import com.android.volley.Response;
+import com.cloudmine.api.CMApiCredentials;
+import com.cloudmine.api.rest.response.CMObjectResponse;
+import com.cloudmine.test.CloudMineTestRunner;
+import com.cloudmine.test.MemoryCache;
+import com.xtremelabs.robolectric.Robolectric;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * <br>
+ * Copyright CloudMine, Inc. All rights reserved<br>
+ * See LICENSE file included with SDK for details.
+ */
+@RunWith(CloudMineTestRunner.class)
+public class CloudMineRequestCacheTest {
+
+    private static final byte[] DATA = "{\"success\":{},\"errors\":{}}".getBytes();
+    private static final long TTL = 60000;
+
+    @Before
+    public void setUp() {
+        CMApiCredentials.initialize("testAppId", "testApiKey", Robolectric.application);
+    }
+
+    private static BaseObjectLoadRequest newRequest(CachePolicy cachePolicy) {
+        return newRequest(cachePolicy, null);
+    }
+
+    private static BaseObjectLoadRequest newRequest(CachePolicy cachePolicy, Response.Listener<CMObjectResponse> listener) {
+        BaseObjectLoadRequest request = new BaseObjectLoadRequest(null, null, null, listener, null);
+        request.setCachePolicy(cachePolicy);
+        request.setTtl(TTL);
+        request.setRequestQueue(new RequestQueue(new MemoryCache(), null));
+        return request;
+    }
+
+    private static Cache.Entry cached(Map<String, String> headers) {
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = DATA;
+        entry.etag = headers.get("ETag");
+        entry.responseHeaders = headers;
+        return entry;
+    }
+
+    @Test
+    public void testNotModifiedHeadersReplaceCachedHeadersOfAnyCase() {
+        Map<String, String> cachedHeaders = new HashMap<String, String>();
+        cachedHeaders.put("ETag", "\"old\"");
+        cachedHeaders.put("Content-Type", "application/json");
+        BaseObjectLoadRequest request = newRequest(CachePolicy.CACHE_FIRST);
+        request.setCacheEntry(cached(cachedHeaders));
+
+        Map<String, String> notModifiedHeaders = new HashMap<String, String>();
+        notModifiedHeaders.put("etag", "\"new\"");
+        Cache.Entry entry = request.getCacheEntry(new NetworkResponse(304, DATA, notModifiedHeaders, true));
+
+        assertEquals(2, entry.responseHeaders.size());
+        assertEquals("\"new\"", entry.etag);
+        assertEquals("\"new\"", CloudMineRequest.getHeader(entry.responseHeaders, "ETag"));
+        assertEquals("application/json", CloudMineRequest.getHeader(entry.responseHeaders, "content-type"));
+    }
+
+    @Test
+    public void testNetworkOnlyIsNotCached() {
+        BaseObjectLoadRequest request = newRequest(CachePolicy.NETWORK_ONLY);
+        assertFalse(request.shouldCache());
+        assertNull(request.getCacheEntry(new NetworkResponse(DATA)));
+    }
+
+    @Test
+    public void testCacheFirstIsFreshForTheTtl() {
+        long now = System.currentTimeMillis();
+        Cache.Entry entry = newRequest(CachePolicy.CACHE_FIRST).getCacheEntry(new NetworkResponse(DATA));
+        assertEquals(entry.softTtl, entry.ttl);
+        assertTrue(entry.softTtl >= now + TTL);
+        assertFalse(entry.refreshNeeded());
+    }
+
+    @Test
+    public void testCacheThenNetworkAlwaysRefreshes() {
+        Cache.Entry entry = newRequest(CachePolicy.CACHE_THEN_NETWORK).getCacheEntry(new NetworkResponse(DATA));
+        assertTrue(entry.refreshNeeded());
+        assertFalse(entry.isExpired());
+    }
+
+    @Test
+    public void testStaleWhileRevalidateSkipsUnchangedRefresh() {
+        final int[] delivered = {0};
+        BaseObjectLoadRequest request = newRequest(CachePolicy.staleWhileRevalidate(30000), new Response.Listener<CMObjectResponse>() {
+            @Override
+            public void onResponse(CMObjectResponse response) {
+                delivered[0]++;
+            }
+        });
+        Cache.Entry entry = request.getCacheEntry(new NetworkResponse(DATA));
+        assertFalse(entry.refreshNeeded());
+        assertEquals(30000, entry.ttl - entry.softTtl);
+
+        //the stale entry was delivered, and the refresh came back as a 200 with the same body. A 304 never gets here:
+        //NetworkDispatcher finishes a not modified response once one has been delivered
+        request.setCacheEntry(entry);
+        request.markDelivered();
+        request.getCacheEntry(new NetworkResponse(200, DATA.clone(), new HashMap<String, String>(), false));
+        CMObjectResponse response = new CMObjectResponse(new String(DATA), 200);
+        request.deliverResponse(response);
+        assertEquals(0, delivered[0]);
+
+        //a refresh whose body changed is delivered
+        byte[] changed = "{\"success\":{\"id\":{}},\"errors\":{}}".getBytes();
+        request.getCacheEntry(new NetworkResponse(200, changed, new HashMap<String, String>(), false));
+        request.deliverResponse(new CMObjectResponse(new String(changed), 200));
+        assertEquals(1, delivered[0]);
+    }
+
+    @Test
+    public void testOfflineOnlyLeavesTheEntryAlone() {
+        Cache.Entry previous = cached(new HashMap<String, String>());
+        BaseObjectLoadRequest request = newRequest(CachePolicy.OFFLINE_ONLY);
+        request.setCacheEntry(previous);
+        assertSame(previous, request.getCacheEntry(new NetworkResponse(304, DATA, new HashMap<String, String>(), true)));
+        //reads what requests following the default stored
+        assertEquals(newRequest(null).getCacheKey(), request.getCacheKey());
+    }
+
+    @Test
+    public void testOwnPoliciesUseTheirOwnCacheKeys() {
+        CloudMineRequest.setDefaultCachePolicy(BaseObjectLoadRequest.REQUEST_TYPE, CachePolicy.CACHE_THEN_NETWORK);
+        try {
+            String defaultKey = newRequest(null).getCacheKey();
+            assertEquals(defaultKey, newRequest(CachePolicy.CACHE_THEN_NETWORK).getCacheKey());
+            assertEquals(defaultKey, newRequest(CachePolicy.NETWORK_ONLY).getCacheKey());
+            assertFalse(defaultKey.equals(newRequest(CachePolicy.CACHE_FIRST).getCacheKey()));
+            assertEquals(newRequest(CachePolicy.staleWhileRevalidate(1000)).getCacheKey(),
+                    newRequest(CachePolicy.staleWhileRevalidate(1000)).getCacheKey());
+            assertFalse(newRequest(CachePolicy.staleWhileRevalidate(1000)).getCacheKey().equals(
+                    newRequest(CachePolicy.staleWhileRevalidate(2000)).getCacheKey()));
+        } finally {
+            CloudMineRequest.setDefaultCachePolicy(BaseObjectLoadRequest.REQUEST_TYPE, null);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.cloudmine.api.rest;
+
+import com.cloudmine.api.rest.response.ObjectModificationResponse;
+import com.cloudmine.test.CloudMineTestRunner;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * <br>
+ * Copyright CloudMine, Inc. All rights reserved<br>
+ * See LICENSE file included with SDK for details.
+ */
+@RunWith(CloudMineTestRunner.class)
+public class ObjectSaveBatcherTest {
+
+    @Test
+    public void testSplitResponseOnlyMentionsEachObject() throws Exception {
+        Map<String, ObjectModificationResponse> responses = ObjectSaveBatcher.splitResponse(
+                "{\"success\":{\"first\":\"created\",\"second\":\"updated\"},\"errors\":{\"third\":\"invalid\"}}",
+                Arrays.asList("first", "second", "third"), 200);
+        assertEquals(3, responses.size());
+        assertTrue(responses.get("first").wasModified("first"));
+        assertFalse(responses.get("first").wasModified("second"));
+        assertTrue(responses.get("second").wasModified("second"));
+        assertFalse(responses.get("third").wasModified("third"));
+        assertEquals(0, responses.get("first").getUpdatedObjectIds().size());
+        assertEquals(1, responses.get("second").getUpdatedObjectIds().size());
+    }
+
+    @Test
+    public void testUtf8Length() throws Exception {
+        String json = "\"id\":{\"name\":\"café € 😀\"}";
+        assertEquals(json.getBytes("UTF-8").length, ObjectSaveBatcher.utf8Length(json));
+    }
+}
@@ -0,0 +1,110 @@
+package com.cloudmine.api.rest;
+
+import com.android.volley.Cache;
+import com.cloudmine.test.CloudMineTestRunner;
+import com.cloudmine.test.MemoryCache;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * <br>
+ * Copyright CloudMine, Inc. All rights reserved<br>
+ * See LICENSE file included with SDK for details.
+ */
+@RunWith(CloudMineTestRunner.class)
+public class TwoTierCacheTest {
+
+    private static Cache.Entry entry(int size) {
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = new byte[size];
+        return entry;
+    }
+
+    @Test
+    public void testPromotesAndEvicts() {
+        MemoryCache slowCache = new MemoryCache();
+        TwoTierCache cache = new TwoTierCache(slowCache, 1000);
+
+        assertNull(cache.get("missing"));
+        assertEquals(1, cache.getMissCount());
+
+        slowCache.put("onDisk", entry(100));
+        assertNotNull(cache.get("onDisk"));
+        assertNotNull(cache.get("onDisk"));
+        assertEquals(1, cache.getSlowHitCount());
+        assertEquals(1, cache.getMemoryHitCount());
+
+        for(int i = 0; i < 10; i++) {
+            cache.put("key" + i, entry(200));
+            assertNotNull(slowCache.get("key" + i));
+        }
+        assertTrue(cache.getEvictionCount() > 0);
+        assertTrue(cache.getMemoryBytes() <= cache.getMaxMemoryBytes());
+        //evicted entries are still found in the slower tier
+        assertNotNull(cache.get("key0"));
+
+        cache.remove("key9");
+        assertNull(cache.get("key9"));
+        assertNull(slowCache.get("key9"));
+    }
+
+    @Test
+    public void testRemoveDuringSlowReadIsNotUndone() throws InterruptedException {
+        final CountDownLatch readStarted = new CountDownLatch(1);
+        final CountDownLatch finishRead = new CountDownLatch(1);
+        final AtomicBoolean blockNextGet = new AtomicBoolean(true);
+        MemoryCache slowCache = new MemoryCache() {
+            @Override
+            public Entry get(String key) {
+                Entry entry = super.get(key);
+                if(blockNextGet.getAndSet(false)) {
+                    readStarted.countDown();
+                    try {
+                        finishRead.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return entry;
+            }
+        };
+        slowCache.put("key", entry(100));
+        final TwoTierCache cache = new TwoTierCache(slowCache, 1000);
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                cache.get("key");
+            }
+        });
+        reader.start();
+        readStarted.await();
+        //the entry is removed while the reader holds the old copy from the slow tier
+        cache.remove("key");
+        finishRead.countDown();
+        reader.join();
+
+        assertNull(cache.get("key"));
+        assertEquals(0, cache.getMemoryBytes());
+    }
+
+    @Test
+    public void testPromotesAfterEarlierWrites() {
+        MemoryCache slowCache = new MemoryCache();
+        TwoTierCache cache = new TwoTierCache(slowCache, 1000);
+        cache.remove("key");
+        slowCache.put("key", entry(100));
+
+        assertNotNull(cache.get("key"));
+        assertNotNull(cache.get("key"));
+        assertEquals(1, cache.getMemoryHitCount());
+    }
+}